@@ -0,0 +1,117 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A non-blocking version of Bank, so callers can have many calls in flight without tying up a thread for each
+ */
+public interface AsyncBank {
+
+    CompletableFuture<CustomerResult> createCustomerAsync(String username);
+
+    CompletableFuture<IntentResult> setupIntentAsync(CustomerResult cus);
+
+    CompletableFuture<PaymentResult> takePaymentAsync(CustomerResult cus,
+                                                      Natural cents,
+                                                      String currency,
+                                                      LocalDateTime now,
+                                                      Natural forQuota,
+                                                      String reference);
+
+    CompletableFuture<Optional<PaymentResult>> findPaymentAsync(String reference);
+
+    CompletableFuture<Optional<IntentResult>> findSetupIntentAsync(CustomerResult cus);
+
+    int DEFAULT_THREADS = 16;
+
+    /**
+     * @return a pool of threads to run blocking bank calls on, of which threads calls can be in flight at once
+     */
+    static ExecutorService newExecutor(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one bank thread!");
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Bank call");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return the executor shared by everything that doesn't supply its own
+     */
+    static Executor defaultExecutor() {
+        return DefaultExecutor.POOL;
+    }
+
+    class DefaultExecutor {
+        private static final ExecutorService POOL = newExecutor(DEFAULT_THREADS);
+    }
+
+    /**
+     * @return an asynchronous view of bank, which runs any blocking calls on the default executor
+     */
+    static AsyncBank of(Bank bank) {
+        return of(bank, defaultExecutor());
+    }
+
+    /**
+     *
+     * @param bank
+     * @param executor where blocking calls are run, if bank isn't already asynchronous
+     * @return an asynchronous view of bank
+     */
+    static AsyncBank of(Bank bank, Executor executor) {
+        if (bank instanceof AsyncBank)
+            return (AsyncBank) bank;
+        return new AsyncBank() {
+            @Override
+            public CompletableFuture<CustomerResult> createCustomerAsync(String username) {
+                return CompletableFuture.supplyAsync(() -> bank.createCustomer(username), executor);
+            }
+
+            @Override
+            public CompletableFuture<IntentResult> setupIntentAsync(CustomerResult cus) {
+                return CompletableFuture.supplyAsync(() -> bank.setupIntent(cus), executor);
+            }
+
+            @Override
+            public CompletableFuture<PaymentResult> takePaymentAsync(CustomerResult cus,
+                                                                     Natural cents,
+                                                                     String currency,
+                                                                     LocalDateTime now,
+                                                                     Natural forQuota,
+                                                                     String reference) {
+                return CompletableFuture.supplyAsync(() -> bank.takePayment(cus, cents, currency, now, forQuota, reference), executor);
+            }
+
+            @Override
+            public CompletableFuture<Optional<PaymentResult>> findPaymentAsync(String reference) {
+                return CompletableFuture.supplyAsync(() -> bank.findPayment(reference), executor);
+            }
+
+            @Override
+            public CompletableFuture<Optional<IntentResult>> findSetupIntentAsync(CustomerResult cus) {
+                return CompletableFuture.supplyAsync(() -> bank.findSetupIntent(cus), executor);
+            }
+        };
+    }
+
+    /**
+     *  Wait for a result, rethrowing the original exception of a failed call
+     */
+    static <T> T await(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+}
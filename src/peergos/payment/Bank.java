@@ -3,6 +3,7 @@ package peergos.payment;
 import peergos.payment.util.*;
 
 import java.time.*;
+import java.util.*;
 
 public interface Bank {
 
@@ -10,5 +11,28 @@ public interface Bank {
 
     IntentResult setupIntent(CustomerResult cus);
 
-    PaymentResult takePayment(CustomerResult cus, Natural cents, String currency, LocalDateTime now, Natural forQuota);
+    /**
+     *
+     * @param reference unique to this charge, and included in any later events about it
+     */
+    PaymentResult takePayment(CustomerResult cus,
+                              Natural cents,
+                              String currency,
+                              LocalDateTime now,
+                              Natural forQuota,
+                              String reference);
+
+    /**
+     * Look up the outcome of an earlier charge, so a pending payment can be resolved without a webhook event
+     *
+     * @param reference the reference the charge was taken with
+     * @return the charge, which may still be pending, or empty if the bank has no record of it
+     */
+    Optional<PaymentResult> findPayment(String reference);
+
+    /**
+     * @return a setup intent the customer hasn't confirmed yet, which can be handed out again rather than creating
+     * another, or empty if they have none
+     */
+    Optional<IntentResult> findSetupIntent(CustomerResult cus);
 }
@@ -0,0 +1,27 @@
+package peergos.payment;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * The bank couldn't handle a call, rather than rejecting it, so the same call may succeed later
+ */
+public class BankUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public BankUnavailableException(String message) {
+        super(message);
+    }
+
+    public BankUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * @return whether a failed call failed because the bank was unavailable, including transport errors
+     */
+    public static boolean isUnavailable(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        return cause instanceof BankUnavailableException || cause instanceof IOException;
+    }
+}
@@ -0,0 +1,183 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+import peergos.shared.util.Triple;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Bills each paying user when their quota expires, rather than everyone at once.
+ *
+ * Users whose quota expires within the next reload interval are loaded from the store and queued for their expiry time.
+ * A daily run of processAll retries failed payments and picks up anything else that is due. Users deferred because the
+ * bank was unavailable are retried, and pending payments are reconciled with the bank, every retryInterval.
+ *
+ * The daily run has its own thread, so however long it takes, it never holds up renewals and retries.
+ */
+public class BillingScheduler {
+    private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+
+    private final PaymentState state;
+    private final LocalTime dailyRunTime;
+    private final Duration reloadInterval;
+    private final Duration retryInterval;
+    private final ExecutorService workers;
+    private final ExecutorService dailyWorker = Executors.newSingleThreadExecutor();
+    private final DelayQueue<ScheduledTask> queue = new DelayQueue<>();
+    private final Set<String> scheduledUsers = ConcurrentHashMap.newKeySet();
+    private Thread dispatcher;
+
+    public BillingScheduler(PaymentState state,
+                            LocalTime dailyRunTime,
+                            Duration reloadInterval,
+                            Duration retryInterval,
+                            int threads) {
+        this.state = state;
+        this.dailyRunTime = dailyRunTime;
+        this.reloadInterval = reloadInterval;
+        this.retryInterval = retryInterval;
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    private static class ScheduledTask implements Delayed {
+        public final LocalDateTime time;
+        public final Runnable task;
+        public final boolean daily;
+
+        public ScheduledTask(LocalDateTime time, Runnable task, boolean daily) {
+            this.time = time;
+            this.task = task;
+            this.daily = daily;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(Duration.between(LocalDateTime.now(), time).toNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    public synchronized void start() {
+        if (dispatcher != null)
+            throw new IllegalStateException("Billing scheduler already started!");
+        LocalDateTime now = LocalDateTime.now();
+        schedule(now, this::reload);
+        scheduleDailyRun(now);
+        schedule(now.plus(retryInterval), this::retryDeferred);
+        schedule(now.plus(retryInterval), this::reconcilePending);
+        dispatcher = new Thread(this::dispatch, "Billing scheduler");
+        dispatcher.start();
+    }
+
+    public synchronized void stop() {
+        if (dispatcher != null)
+            dispatcher.interrupt();
+        workers.shutdown();
+        dailyWorker.shutdown();
+    }
+
+    public int queuedUsers() {
+        return scheduledUsers.size();
+    }
+
+    private void schedule(LocalDateTime time, Runnable task) {
+        queue.add(new ScheduledTask(time, task, false));
+    }
+
+    private void scheduleDailyRun(LocalDateTime now) {
+        queue.add(new ScheduledTask(nextDailyRun(now), this::dailyRun, true));
+    }
+
+    private LocalDateTime nextDailyRun(LocalDateTime now) {
+        LocalDateTime next = LocalDateTime.of(now.toLocalDate(), dailyRunTime);
+        return next.isAfter(now) ? next : next.plusDays(1);
+    }
+
+    private void dispatch() {
+        while (true) {
+            try {
+                ScheduledTask next = queue.take();
+                (next.daily ? dailyWorker : workers).execute(() -> {
+                    try {
+                        next.task.run();
+                    } catch (Throwable t) {
+                        LOG.log(Level.SEVERE, "Unexpected Exception occurred", t);
+                    }
+                });
+            } catch (InterruptedException e) {
+                LOG.info("Billing scheduler stopped");
+                return;
+            }
+        }
+    }
+
+    private void reload() {
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            int added = 0;
+            for (Pair<String, LocalDateTime> user : state.getExpiringUsers(now.plus(reloadInterval))) {
+                if (scheduledUsers.add(user.left)) {
+                    schedule(user.right, () -> renew(user.left));
+                    added++;
+                }
+            }
+            LOG.info("Scheduled " + added + " quota renewals, " + scheduledUsers.size() + " pending");
+        } finally {
+            schedule(now.plus(reloadInterval), this::reload);
+        }
+    }
+
+    private void renew(String username) {
+        scheduledUsers.remove(username);
+        try {
+            if (! state.processUser(username, LocalDateTime.now()))
+                LOG.info("Failed to renew quota for " + username);
+        } catch (Throwable t) {
+            LOG.log(Level.SEVERE, "Unable to process user:" + username, t);
+        }
+    }
+
+    private void retryDeferred() {
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            if (state.deferredUserCount() == 0)
+                return;
+            Triple<Integer, Integer, Integer> stats = state.retryDeferred(now);
+            LOG.info("Retried deferred payments. " + " success count: " + stats.left +
+                    " failure count: " + stats.middle + " exception count: " + stats.right);
+        } finally {
+            schedule(now.plus(retryInterval), this::retryDeferred);
+        }
+    }
+
+    private void reconcilePending() {
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            Triple<Integer, Integer, Integer> stats = state.reconcilePendingPayments(now);
+            if (stats.left + stats.middle + stats.right > 0)
+                LOG.info("Reconciled pending payments. " + " success count: " + stats.left +
+                        " failure count: " + stats.middle + " exception count: " + stats.right);
+        } finally {
+            schedule(now.plus(retryInterval), this::reconcilePending);
+        }
+    }
+
+    private void dailyRun() {
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            LOG.info("Starting Periodic payment run. User count: " + state.userCount());
+            Triple<Integer, Integer, Integer> stats = state.processAll(now);
+            LOG.info("Completed Periodic payment run. " + " success count: " + stats.left +
+                    " failure count: " + stats.middle + " exception count: " + stats.right);
+        } finally {
+            scheduleDailyRun(now);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * A PaymentStore that keeps a bounded LRU cache of user snapshots in front of another store. Every write through this
+ * store invalidates the cached snapshot of the user it touches. Writes from anywhere else, like another server or
+ * LoadPaymentStore on the same database, are seen once the snapshot expires.
+ */
+public class CachingPaymentStore implements PaymentStore {
+    public static final Duration DEFAULT_TTL = Duration.ofMinutes(1);
+
+    private static class CachedUser {
+        public final UserState user;
+        public final long expiryNanos;
+
+        public CachedUser(UserState user, long expiryNanos) {
+            this.user = user;
+            this.expiryNanos = expiryNanos;
+        }
+    }
+
+    private final PaymentStore target;
+    private final long ttlNanos;
+    private final Map<String, CachedUser> cache;
+    private final AtomicLong writes = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    public CachingPaymentStore(PaymentStore target, int maxUsers) {
+        this(target, maxUsers, DEFAULT_TTL);
+    }
+
+    /**
+     *
+     * @param target
+     * @param maxUsers
+     * @param ttl How long a snapshot is used before reading the user again, which bounds how stale it can be
+     */
+    public CachingPaymentStore(PaymentStore target, int maxUsers, Duration ttl) {
+        this.target = target;
+        this.ttlNanos = ttl.toNanos();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+                boolean evict = size() > maxUsers;
+                if (evict)
+                    evictions.incrementAndGet();
+                return evict;
+            }
+        };
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    private synchronized UserState getCached(String username) {
+        CachedUser cached = cache.get(username);
+        if (cached == null)
+            return null;
+        if (System.nanoTime() - cached.expiryNanos >= 0) {
+            cache.remove(username);
+            return null;
+        }
+        return cached.user;
+    }
+
+    private synchronized void cache(String username, UserState user, long writesBeforeRead) {
+        // Don't cache a row that might have been read before a concurrent write
+        if (writes.get() == writesBeforeRead)
+            cache.put(username, new CachedUser(user, System.nanoTime() + ttlNanos));
+    }
+
+    private synchronized void invalidate(String username) {
+        writes.incrementAndGet();
+        cache.remove(username);
+    }
+
+    private synchronized void invalidateAll() {
+        writes.incrementAndGet();
+        cache.clear();
+    }
+
+    @Override
+    public Optional<UserState> getUserState(String username) {
+        UserState cached = getCached(username);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return Optional.of(cached);
+        }
+        misses.incrementAndGet();
+        long writesBeforeRead = writes.get();
+        Optional<UserState> res = target.getUserState(username);
+        res.ifPresent(user -> cache(username, user, writesBeforeRead));
+        return res;
+    }
+
+    @Override
+    public Map<String, UserState> getUserStates(List<String> usernames) {
+        Map<String, UserState> res = new HashMap<>();
+        List<String> uncached = new ArrayList<>();
+        for (String username : usernames) {
+            UserState cached = getCached(username);
+            if (cached != null) {
+                res.put(username, cached);
+            } else
+                uncached.add(username);
+        }
+        hits.addAndGet(res.size());
+        if (uncached.isEmpty())
+            return res;
+        misses.addAndGet(uncached.size());
+        long writesBeforeRead = writes.get();
+        Map<String, UserState> loaded = target.getUserStates(uncached);
+        loaded.forEach((username, user) -> cache(username, user, writesBeforeRead));
+        res.putAll(loaded);
+        return res;
+    }
+
+    private <T> T read(String username, Function<UserState, T> getter, Supplier<T> uncached) {
+        return getUserState(username)
+                .map(getter)
+                .orElseGet(uncached);
+    }
+
+    @Override
+    public long userCount() {
+        return target.userCount();
+    }
+
+    @Override
+    public boolean hasUser(String username) {
+        return getCached(username) != null || target.hasUser(username);
+    }
+
+    @Override
+    public List<String> getAllUsernames() {
+        return target.getAllUsernames();
+    }
+
+    @Override
+    public void streamUsernames(LongConsumer onCount, Consumer<String> consumer) {
+        target.streamUsernames(onCount, consumer);
+    }
+
+    @Override
+    public long countQuotaChanges(long afterSeq) {
+        return target.countQuotaChanges(afterSeq);
+    }
+
+    @Override
+    public void streamQuotaChanges(long afterSeq, long maxCount, Consumer<QuotaChange> consumer) {
+        target.streamQuotaChanges(afterSeq, maxCount, consumer);
+    }
+
+    @Override
+    public List<String> getUsersToProcess(LocalDateTime now) {
+        return target.getUsersToProcess(now);
+    }
+
+    @Override
+    public List<Pair<String, LocalDateTime>> getExpiringUsers(LocalDateTime before) {
+        return target.getExpiringUsers(before);
+    }
+
+    @Override
+    public boolean addToken(String token) {
+        return target.addToken(token);
+    }
+
+    @Override
+    public boolean hasToken(String token) {
+        return target.hasToken(token);
+    }
+
+    @Override
+    public boolean removeToken(String token) {
+        return target.removeToken(token);
+    }
+
+    @Override
+    public void ensureUser(String username, Natural freeSpace, LocalDateTime now) {
+        try {
+            target.ensureUser(username, freeSpace, now);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public long ensureUsers(Stream<Pair<String, Natural>> usersAndFreeSpace, LocalDateTime now) {
+        try {
+            return target.ensureUsers(usersAndFreeSpace, now);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public long setFreeQuotas(Stream<Pair<String, Natural>> freeQuotas) {
+        try {
+            return target.setFreeQuotas(freeQuotas);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void setCustomer(String username, CustomerResult customer) {
+        try {
+            target.setCustomer(username, customer);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public CustomerResult getCustomer(String username) {
+        return read(username, UserState::getCustomer, () -> target.getCustomer(username));
+    }
+
+    @Override
+    public void setDesiredQuota(String username, Natural quota, LocalDateTime now) {
+        try {
+            target.setDesiredQuota(username, quota, now);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public Natural getDesiredQuota(String username) {
+        return read(username, UserState::getDesiredQuota, () -> target.getDesiredQuota(username));
+    }
+
+    @Override
+    public void setCurrentBalance(String username, Natural balance) {
+        try {
+            target.setCurrentBalance(username, balance);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public Natural getCurrentBalance(String username) {
+        return read(username, UserState::getCurrentBalance, () -> target.getCurrentBalance(username));
+    }
+
+    @Override
+    public void setCurrentPrice(String username, Natural price) {
+        try {
+            target.setCurrentPrice(username, price);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public Natural getCurrentPrice(String username) {
+        return read(username, UserState::getCurrentPrice, () -> target.getCurrentPrice(username));
+    }
+
+    @Override
+    public void setCurrentQuota(String username, Natural quota) {
+        try {
+            target.setCurrentQuota(username, quota);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public Natural getCurrentQuota(String username) {
+        return read(username, UserState::getQuota, () -> target.getCurrentQuota(username));
+    }
+
+    @Override
+    public void setFreeQuota(String username, Natural quota) {
+        try {
+            target.setFreeQuota(username, quota);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public Natural getFreeQuota(String username) {
+        return read(username, UserState::getFreeQuota, () -> target.getFreeQuota(username));
+    }
+
+    @Override
+    public void setQuotaExpiry(String username, LocalDateTime expiry) {
+        try {
+            target.setQuotaExpiry(username, expiry);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public LocalDateTime getQuotaExpiry(String username) {
+        return read(username, UserState::getQuotaExpiry, () -> target.getQuotaExpiry(username));
+    }
+
+    @Override
+    public void setError(String username, String error) {
+        try {
+            target.setError(username, error);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public Optional<String> getError(String username) {
+        return read(username, UserState::getError, () -> target.getError(username));
+    }
+
+    @Override
+    public boolean applyBilling(String username,
+                                LocalDateTime previousExpiry,
+                                Natural balance,
+                                Natural quota,
+                                LocalDateTime expiry,
+                                Optional<String> error) {
+        try {
+            return target.applyBilling(username, previousExpiry, balance, quota, expiry, error);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public void addPendingPayment(PendingPayment payment) {
+        target.addPendingPayment(payment);
+    }
+
+    @Override
+    public Optional<PendingPayment> getPendingPayment(String reference) {
+        return target.getPendingPayment(reference);
+    }
+
+    @Override
+    public List<PendingPayment> getPendingPayments(String username) {
+        return target.getPendingPayments(username);
+    }
+
+    @Override
+    public List<String> getUsersWithPendingPayments(LocalDateTime createdBefore) {
+        return target.getUsersWithPendingPayments(createdBefore);
+    }
+
+    @Override
+    public boolean removePendingPayment(String reference) {
+        return target.removePendingPayment(reference);
+    }
+}
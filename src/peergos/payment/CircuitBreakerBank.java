@@ -0,0 +1,224 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * A Bank that stops calling another Bank after a run of failures because it was unavailable. While open every call fails
+ * immediately with a CircuitOpenException. After openDuration a single probe call is let through (half open), which
+ * closes the circuit if it succeeds and opens it again if it doesn't.
+ *
+ * Calls the bank rejects, like a declined card, are not failures. The result of a call that started before the last
+ * change of state is ignored, so a slow call from before the circuit opened can't close it again.
+ */
+public class CircuitBreakerBank implements Bank, AsyncBank {
+    private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final Bank target;
+    private final AsyncBank asyncTarget;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private State state = State.CLOSED;
+    // incremented on every change of state
+    private long generation = 0;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+    private final AtomicLong rejectedCalls = new AtomicLong(0);
+    private final AtomicLong openCount = new AtomicLong(0);
+
+    public CircuitBreakerBank(Bank target, int failureThreshold, Duration openDuration) {
+        this(target, failureThreshold, openDuration, AsyncBank.defaultExecutor());
+    }
+
+    public CircuitBreakerBank(Bank target, int failureThreshold, Duration openDuration, Executor bankExecutor) {
+        if (failureThreshold < 1)
+            throw new IllegalArgumentException("Failure threshold must be positive: " + failureThreshold);
+        this.target = target;
+        // a synchronous target runs on its own threads, rather than blocking our async callers
+        this.asyncTarget = AsyncBank.of(target, bankExecutor);
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @return the current state, which stays open after openDuration until a call is let through as the probe
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of calls failed without calling the bank
+     */
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    /**
+     * @return the number of times the circuit has opened
+     */
+    public long getOpenCount() {
+        return openCount.get();
+    }
+
+    private boolean openTimeElapsed() {
+        return System.nanoTime() - openedAt >= openDuration.toNanos();
+    }
+
+    private void setState(State newState) {
+        state = newState;
+        generation++;
+    }
+
+    /**
+     *  Decide whether a call can go through, moving to half open if it's time to probe
+     *
+     * @return the generation the call started in
+     */
+    private synchronized long beforeCall() {
+        switch (state) {
+            case CLOSED:
+                return generation;
+            case OPEN:
+                if (openTimeElapsed()) {
+                    // this call is the probe
+                    setState(State.HALF_OPEN);
+                    LOG.info("Bank circuit breaker half open, probing");
+                    return generation;
+                }
+                break;
+            case HALF_OPEN:
+                // only one probe at a time
+                break;
+        }
+        rejectedCalls.incrementAndGet();
+        throw new CircuitOpenException("Bank circuit breaker is open");
+    }
+
+    private void onSuccess() {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            setState(State.CLOSED);
+            LOG.info("Bank circuit breaker closed");
+        }
+    }
+
+    private void onFailure(Throwable t) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            setState(State.OPEN);
+            openedAt = System.nanoTime();
+            openCount.incrementAndGet();
+            LOG.log(Level.WARNING, "Bank circuit breaker opened after " + consecutiveFailures + " failures", t);
+        }
+    }
+
+    private synchronized void onResult(long callGeneration, Throwable err) {
+        if (callGeneration != generation)
+            // the state changed while the call was in flight
+            return;
+        if (err == null)
+            onSuccess();
+        else if (BankUnavailableException.isUnavailable(err))
+            onFailure(err);
+        else
+            // the bank answered, so it is up
+            onSuccess();
+    }
+
+    private <T> T call(Supplier<T> task) {
+        long callGeneration = beforeCall();
+        try {
+            T res = task.get();
+            onResult(callGeneration, null);
+            return res;
+        } catch (RuntimeException e) {
+            onResult(callGeneration, e);
+            throw e;
+        }
+    }
+
+    private <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> task) {
+        long callGeneration = beforeCall();
+        CompletableFuture<T> res;
+        try {
+            res = task.get();
+        } catch (RuntimeException e) {
+            onResult(callGeneration, e);
+            throw e;
+        }
+        return res.whenComplete((r, err) -> onResult(callGeneration, err));
+    }
+
+    @Override
+    public CustomerResult createCustomer(String username) {
+        return call(() -> target.createCustomer(username));
+    }
+
+    @Override
+    public IntentResult setupIntent(CustomerResult cus) {
+        return call(() -> target.setupIntent(cus));
+    }
+
+    @Override
+    public PaymentResult takePayment(CustomerResult cus,
+                                     Natural cents,
+                                     String currency,
+                                     LocalDateTime now,
+                                     Natural forQuota,
+                                     String reference) {
+        return call(() -> target.takePayment(cus, cents, currency, now, forQuota, reference));
+    }
+
+    @Override
+    public Optional<PaymentResult> findPayment(String reference) {
+        return call(() -> target.findPayment(reference));
+    }
+
+    @Override
+    public Optional<IntentResult> findSetupIntent(CustomerResult cus) {
+        return call(() -> target.findSetupIntent(cus));
+    }
+
+    @Override
+    public CompletableFuture<CustomerResult> createCustomerAsync(String username) {
+        return callAsync(() -> asyncTarget.createCustomerAsync(username));
+    }
+
+    @Override
+    public CompletableFuture<IntentResult> setupIntentAsync(CustomerResult cus) {
+        return callAsync(() -> asyncTarget.setupIntentAsync(cus));
+    }
+
+    @Override
+    public CompletableFuture<PaymentResult> takePaymentAsync(CustomerResult cus,
+                                                             Natural cents,
+                                                             String currency,
+                                                             LocalDateTime now,
+                                                             Natural forQuota,
+                                                             String reference) {
+        return callAsync(() -> asyncTarget.takePaymentAsync(cus, cents, currency, now, forQuota, reference));
+    }
+
+    @Override
+    public CompletableFuture<Optional<PaymentResult>> findPaymentAsync(String reference) {
+        return callAsync(() -> asyncTarget.findPaymentAsync(reference));
+    }
+
+    @Override
+    public CompletableFuture<Optional<IntentResult>> findSetupIntentAsync(CustomerResult cus) {
+        return callAsync(() -> asyncTarget.findSetupIntentAsync(cus));
+    }
+}
@@ -0,0 +1,12 @@
+package peergos.payment;
+
+/**
+ * A call that wasn't attempted because the circuit breaker in front of the bank is open
+ */
+public class CircuitOpenException extends BankUnavailableException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
@@ -7,6 +7,7 @@ import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class LoadPaymentStore {
 
@@ -15,10 +16,11 @@ public class LoadPaymentStore {
         if (a.hasArg("file")) {
             Supplier<Connection> database = Builder.getDBConnector(a, "payment-store-sql-file");
             PaymentStore store = new SqlPaymentStore(database, a.getBoolean("use-postgres", false));
-            List<String> lines = Files.readAllLines(Paths.get(a.getArg("file")));
-            for (String line : lines) {
-                String[] parts = line.trim().split(" ");
-                store.setFreeQuota(parts[0], Natural.of(Long.parseLong(parts[1])));
+            try (Stream<String> lines = Files.lines(Paths.get(a.getArg("file")))) {
+                long updated = store.setFreeQuotas(lines
+                        .map(line -> line.trim().split(" "))
+                        .map(parts -> new Pair<>(parts[0], Natural.of(Long.parseLong(parts[1])))));
+                System.out.println("Updated free quota of " + updated + " users");
             }
         } else if (a.hasArg("user")) {
             Supplier<Connection> database = Builder.getDBConnector(a, "payment-store-sql-file");
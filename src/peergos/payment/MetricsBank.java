@@ -0,0 +1,115 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A Bank which records the latency, errors and number in flight of calls to another Bank
+ */
+public class MetricsBank implements Bank, AsyncBank {
+
+    private final Bank target;
+    private final AsyncBank asyncTarget;
+    private final MetricsRegistry metrics;
+
+    public MetricsBank(Bank target, MetricsRegistry metrics) {
+        this(target, metrics, AsyncBank.defaultExecutor());
+    }
+
+    public MetricsBank(Bank target, MetricsRegistry metrics, Executor bankExecutor) {
+        this.target = target;
+        this.asyncTarget = AsyncBank.of(target, bankExecutor);
+        this.metrics = metrics;
+    }
+
+    private <T> T call(String op, Supplier<T> task) {
+        return AsyncBank.await(callAsync(op, () -> {
+            try {
+                return CompletableFuture.completedFuture(task.get());
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }));
+    }
+
+    private <T> CompletableFuture<T> callAsync(String op, Supplier<CompletableFuture<T>> task) {
+        long start = System.nanoTime();
+        metrics.gauge("bank_calls_in_flight", "Bank calls in flight", "op", op).incrementAndGet();
+        CompletableFuture<T> res;
+        try {
+            res = task.get();
+        } catch (RuntimeException e) {
+            res = CompletableFuture.failedFuture(e);
+        }
+        return res.whenComplete((x, err) -> {
+            metrics.gauge("bank_calls_in_flight", "Bank calls in flight", "op", op).decrementAndGet();
+            metrics.timer("bank_call_seconds", "Bank call latency", "op", op).recordSince(start);
+            if (err != null)
+                metrics.counter("bank_call_errors_total", "Failed bank calls", "op", op).incrementAndGet();
+        });
+    }
+
+    @Override
+    public CustomerResult createCustomer(String username) {
+        return call("createCustomer", () -> target.createCustomer(username));
+    }
+
+    @Override
+    public IntentResult setupIntent(CustomerResult cus) {
+        return call("setupIntent", () -> target.setupIntent(cus));
+    }
+
+    @Override
+    public PaymentResult takePayment(CustomerResult cus,
+                                     Natural cents,
+                                     String currency,
+                                     LocalDateTime now,
+                                     Natural forQuota,
+                                     String reference) {
+        return call("takePayment", () -> target.takePayment(cus, cents, currency, now, forQuota, reference));
+    }
+
+    @Override
+    public Optional<PaymentResult> findPayment(String reference) {
+        return call("findPayment", () -> target.findPayment(reference));
+    }
+
+    @Override
+    public Optional<IntentResult> findSetupIntent(CustomerResult cus) {
+        return call("findSetupIntent", () -> target.findSetupIntent(cus));
+    }
+
+    @Override
+    public CompletableFuture<CustomerResult> createCustomerAsync(String username) {
+        return callAsync("createCustomer", () -> asyncTarget.createCustomerAsync(username));
+    }
+
+    @Override
+    public CompletableFuture<IntentResult> setupIntentAsync(CustomerResult cus) {
+        return callAsync("setupIntent", () -> asyncTarget.setupIntentAsync(cus));
+    }
+
+    @Override
+    public CompletableFuture<PaymentResult> takePaymentAsync(CustomerResult cus,
+                                                             Natural cents,
+                                                             String currency,
+                                                             LocalDateTime now,
+                                                             Natural forQuota,
+                                                             String reference) {
+        return callAsync("takePayment", () -> asyncTarget.takePaymentAsync(cus, cents, currency, now, forQuota, reference));
+    }
+
+    @Override
+    public CompletableFuture<Optional<PaymentResult>> findPaymentAsync(String reference) {
+        return callAsync("findPayment", () -> asyncTarget.findPaymentAsync(reference));
+    }
+
+    @Override
+    public CompletableFuture<Optional<IntentResult>> findSetupIntentAsync(CustomerResult cus) {
+        return callAsync("findSetupIntent", () -> asyncTarget.findSetupIntentAsync(cus));
+    }
+}
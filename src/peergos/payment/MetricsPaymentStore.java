@@ -0,0 +1,240 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * A PaymentStore which records the latency and errors of each operation on another store.
+ */
+public class MetricsPaymentStore implements PaymentStore {
+
+    private final PaymentStore target;
+    private final MetricsRegistry metrics;
+
+    public MetricsPaymentStore(PaymentStore target, MetricsRegistry metrics) {
+        this.target = target;
+        this.metrics = metrics;
+    }
+
+    private <T> T time(String op, Supplier<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            metrics.counter("payment_store_errors_total", "Failed payment store operations", "op", op).incrementAndGet();
+            throw e;
+        } finally {
+            metrics.timer("payment_store_seconds", "Payment store operation latency", "op", op).recordSince(start);
+        }
+    }
+
+    private void run(String op, Runnable call) {
+        time(op, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    @Override
+    public long userCount() {
+        return time("userCount", () -> target.userCount());
+    }
+
+    @Override
+    public boolean hasUser(String username) {
+        return time("hasUser", () -> target.hasUser(username));
+    }
+
+    @Override
+    public Optional<UserState> getUserState(String username) {
+        return time("getUserState", () -> target.getUserState(username));
+    }
+
+    @Override
+    public Map<String, UserState> getUserStates(List<String> usernames) {
+        return time("getUserStates", () -> target.getUserStates(usernames));
+    }
+
+    @Override
+    public List<String> getAllUsernames() {
+        return time("getAllUsernames", () -> target.getAllUsernames());
+    }
+
+    @Override
+    public void streamUsernames(LongConsumer onCount, Consumer<String> consumer) {
+        run("streamUsernames", () -> target.streamUsernames(onCount, consumer));
+    }
+
+    @Override
+    public long countQuotaChanges(long afterSeq) {
+        return time("countQuotaChanges", () -> target.countQuotaChanges(afterSeq));
+    }
+
+    @Override
+    public void streamQuotaChanges(long afterSeq, long maxCount, Consumer<QuotaChange> consumer) {
+        run("streamQuotaChanges", () -> target.streamQuotaChanges(afterSeq, maxCount, consumer));
+    }
+
+    @Override
+    public List<String> getUsersToProcess(LocalDateTime now) {
+        return time("getUsersToProcess", () -> target.getUsersToProcess(now));
+    }
+
+    @Override
+    public List<Pair<String, LocalDateTime>> getExpiringUsers(LocalDateTime before) {
+        return time("getExpiringUsers", () -> target.getExpiringUsers(before));
+    }
+
+    @Override
+    public boolean addToken(String token) {
+        return time("addToken", () -> target.addToken(token));
+    }
+
+    @Override
+    public boolean hasToken(String token) {
+        return time("hasToken", () -> target.hasToken(token));
+    }
+
+    @Override
+    public boolean removeToken(String token) {
+        return time("removeToken", () -> target.removeToken(token));
+    }
+
+    @Override
+    public void ensureUser(String username,
+                           Natural freeSpace,
+                           LocalDateTime now) {
+        run("ensureUser", () -> target.ensureUser(username, freeSpace, now));
+    }
+
+    @Override
+    public long ensureUsers(Stream<Pair<String, Natural>> usersAndFreeSpace, LocalDateTime now) {
+        return time("ensureUsers", () -> target.ensureUsers(usersAndFreeSpace, now));
+    }
+
+    @Override
+    public long setFreeQuotas(Stream<Pair<String, Natural>> freeQuotas) {
+        return time("setFreeQuotas", () -> target.setFreeQuotas(freeQuotas));
+    }
+
+    @Override
+    public void setCustomer(String username, CustomerResult customer) {
+        run("setCustomer", () -> target.setCustomer(username, customer));
+    }
+
+    @Override
+    public CustomerResult getCustomer(String username) {
+        return time("getCustomer", () -> target.getCustomer(username));
+    }
+
+    @Override
+    public void setDesiredQuota(String username,
+                                Natural quota,
+                                LocalDateTime now) {
+        run("setDesiredQuota", () -> target.setDesiredQuota(username, quota, now));
+    }
+
+    @Override
+    public Natural getDesiredQuota(String username) {
+        return time("getDesiredQuota", () -> target.getDesiredQuota(username));
+    }
+
+    @Override
+    public void setCurrentBalance(String username, Natural balance) {
+        run("setCurrentBalance", () -> target.setCurrentBalance(username, balance));
+    }
+
+    @Override
+    public Natural getCurrentBalance(String username) {
+        return time("getCurrentBalance", () -> target.getCurrentBalance(username));
+    }
+
+    @Override
+    public void setCurrentPrice(String username, Natural balance) {
+        run("setCurrentPrice", () -> target.setCurrentPrice(username, balance));
+    }
+
+    @Override
+    public Natural getCurrentPrice(String username) {
+        return time("getCurrentPrice", () -> target.getCurrentPrice(username));
+    }
+
+    @Override
+    public void setCurrentQuota(String username, Natural quota) {
+        run("setCurrentQuota", () -> target.setCurrentQuota(username, quota));
+    }
+
+    @Override
+    public Natural getCurrentQuota(String username) {
+        return time("getCurrentQuota", () -> target.getCurrentQuota(username));
+    }
+
+    @Override
+    public void setFreeQuota(String username, Natural quota) {
+        run("setFreeQuota", () -> target.setFreeQuota(username, quota));
+    }
+
+    @Override
+    public Natural getFreeQuota(String username) {
+        return time("getFreeQuota", () -> target.getFreeQuota(username));
+    }
+
+    @Override
+    public void setQuotaExpiry(String username, LocalDateTime expiry) {
+        run("setQuotaExpiry", () -> target.setQuotaExpiry(username, expiry));
+    }
+
+    @Override
+    public LocalDateTime getQuotaExpiry(String username) {
+        return time("getQuotaExpiry", () -> target.getQuotaExpiry(username));
+    }
+
+    @Override
+    public void setError(String username, String error) {
+        run("setError", () -> target.setError(username, error));
+    }
+
+    @Override
+    public Optional<String> getError(String username) {
+        return time("getError", () -> target.getError(username));
+    }
+
+    @Override
+    public boolean applyBilling(String username,
+                                LocalDateTime previousExpiry,
+                                Natural balance,
+                                Natural quota,
+                                LocalDateTime expiry,
+                                Optional<String> error) {
+        return time("applyBilling", () -> target.applyBilling(username, previousExpiry, balance, quota, expiry, error));
+    }
+
+    @Override
+    public void addPendingPayment(PendingPayment payment) {
+        run("addPendingPayment", () -> target.addPendingPayment(payment));
+    }
+
+    @Override
+    public Optional<PendingPayment> getPendingPayment(String reference) {
+        return time("getPendingPayment", () -> target.getPendingPayment(reference));
+    }
+
+    @Override
+    public List<PendingPayment> getPendingPayments(String username) {
+        return time("getPendingPayments", () -> target.getPendingPayments(username));
+    }
+
+    @Override
+    public List<String> getUsersWithPendingPayments(LocalDateTime createdBefore) {
+        return time("getUsersWithPendingPayments", () -> target.getUsersWithPendingPayments(createdBefore));
+    }
+
+    @Override
+    public boolean removePendingPayment(String reference) {
+        return time("removePendingPayment", () -> target.removePendingPayment(reference));
+    }
+}
@@ -10,16 +10,27 @@ public class PaymentResult {
     public final String currency;
     public final LocalDateTime time;
     public final Optional<String> failureError;
+    // The outcome will arrive later in a webhook event
+    public final boolean pending;
 
-    public PaymentResult(Natural amount, String currency, LocalDateTime time, Optional<String> failureError) {
+    public PaymentResult(Natural amount, String currency, LocalDateTime time, Optional<String> failureError, boolean pending) {
         this.amount = amount;
         this.currency = currency;
         this.time = time;
         this.failureError = failureError;
+        this.pending = pending;
+    }
+
+    public PaymentResult(Natural amount, String currency, LocalDateTime time, Optional<String> failureError) {
+        this(amount, currency, time, failureError, false);
+    }
+
+    public static PaymentResult pending(Natural amount, String currency, LocalDateTime time) {
+        return new PaymentResult(amount, currency, time, Optional.empty(), true);
     }
 
     public boolean isSuccessful() {
-        return ! failureError.isPresent();
+        return ! pending && ! failureError.isPresent();
     }
 
     @Override
@@ -27,6 +38,7 @@ public class PaymentResult {
         Natural hundred = Natural.of(100);
         return amount.divide(hundred) + "." + String.format("%02d", amount.mod(hundred).val)
                 + " " + currency
-                + failureError.map(e -> " " + e).orElse("");
+                + failureError.map(e -> " " + e).orElse("")
+                + (pending ? " pending" : "");
     }
 }
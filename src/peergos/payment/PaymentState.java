@@ -6,19 +6,34 @@ import peergos.shared.util.Triple;
 
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class PaymentState {
     private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+    private static final int USER_LOCK_STRIPES = 1024;
+    // How old a pending payment is before we ask the bank about it, rather than waiting for a webhook event, and send
+    // it again if the bank has no record of it. The bank's payment search is rate limited and lags behind charges.
+    public static final Duration PENDING_PAYMENT_RETRY_DELAY = Duration.ofHours(1);
 
     private final PaymentStore userStates;
     private final Pricer pricer;
     private final Natural minPaymentCents;
-    private final Bank bank;
+    private final AsyncBank bank;
     private final Natural defaultFreeQuota;
     private final int maxUsers;
     private final Set<Natural> allowedQuotas;
+    private final int billingThreads;
+    // Serialises billing and quota changes per user, rather than across all users
+    private final StripedLock userLocks = new StripedLock(USER_LOCK_STRIPES);
+    // Serialises creating users on demand, so we don't go over maxUsers
+    private final Object signupLock = new Object();
+    // Users we couldn't bill because the bank was unavailable, to retry when it is back
+    private final Set<String> deferredUsers = ConcurrentHashMap.newKeySet();
+    private final SetupIntentPool intentPool;
 
     public PaymentState(PaymentStore userStates,
                         Pricer pricer,
@@ -27,13 +42,56 @@ public class PaymentState {
                         Natural defaultFreeQuota,
                         int maxUsers,
                         Set<Natural> allowedQuotas) {
+        this(userStates, pricer, minPaymentCents, bank, defaultFreeQuota, maxUsers, allowedQuotas, 1);
+    }
+
+    public PaymentState(PaymentStore userStates,
+                        Pricer pricer,
+                        Natural minPaymentCents,
+                        Bank bank,
+                        Natural defaultFreeQuota,
+                        int maxUsers,
+                        Set<Natural> allowedQuotas,
+                        int billingThreads) {
+        this(userStates, pricer, minPaymentCents, bank, defaultFreeQuota, maxUsers, allowedQuotas, billingThreads,
+                SetupIntentPool.disabled());
+    }
+
+    public PaymentState(PaymentStore userStates,
+                        Pricer pricer,
+                        Natural minPaymentCents,
+                        Bank bank,
+                        Natural defaultFreeQuota,
+                        int maxUsers,
+                        Set<Natural> allowedQuotas,
+                        int billingThreads,
+                        SetupIntentPool intentPool) {
+        this(userStates, pricer, minPaymentCents, bank, defaultFreeQuota, maxUsers, allowedQuotas, billingThreads,
+                intentPool, AsyncBank.defaultExecutor());
+    }
+
+    public PaymentState(PaymentStore userStates,
+                        Pricer pricer,
+                        Natural minPaymentCents,
+                        Bank bank,
+                        Natural defaultFreeQuota,
+                        int maxUsers,
+                        Set<Natural> allowedQuotas,
+                        int billingThreads,
+                        SetupIntentPool intentPool,
+                        Executor bankExecutor) {
+        if (billingThreads < 1)
+            throw new IllegalArgumentException("Need at least one billing thread!");
         this.userStates = userStates;
         this.pricer = pricer;
         this.minPaymentCents = minPaymentCents;
-        this.bank = bank;
+        // calls to a synchronous Bank run on their own threads, so they don't block the caller
+        this.bank = AsyncBank.of(bank, bankExecutor);
         this.defaultFreeQuota = defaultFreeQuota;
         this.maxUsers = maxUsers;
         this.allowedQuotas = allowedQuotas;
+        this.billingThreads = billingThreads;
+        this.intentPool = intentPool;
     }
 
     public boolean acceptingSignups() {
@@ -60,6 +118,18 @@ public class PaymentState {
         return userStates.getAllUsernames();
     }
 
+    public void streamUsernames(LongConsumer onCount, Consumer<String> consumer) {
+        userStates.streamUsernames(onCount, consumer);
+    }
+
+    public long countQuotaChanges(long afterSeq) {
+        return userStates.countQuotaChanges(afterSeq);
+    }
+
+    public void streamQuotaChanges(long afterSeq, long maxCount, Consumer<QuotaChange> consumer) {
+        userStates.streamQuotaChanges(afterSeq, maxCount, consumer);
+    }
+
     public long userCount() {
         return userStates.userCount();
     }
@@ -68,123 +138,448 @@ public class PaymentState {
         return userStates.hasUser(username);
     }
 
+    private UserState getUserState(String username) {
+        return userStates.getUserState(username)
+                .orElseThrow(() -> new IllegalStateException("Unknown user: " + username));
+    }
+
     public PaymentProperties getPaymentProperties(String username, boolean newClientSecret, String ourUrl) {
-        Optional<String> clientSecret = newClientSecret ? Optional.of(generateClientSecret(username)) : Optional.empty();
-        long freeQuota = userStates.getFreeQuota(username).val;
-        long desiredQuota = userStates.getDesiredQuota(username).val;
-        Optional<String> error = userStates.getError(username);
-        return error.map(err -> PaymentProperties.errored(ourUrl, err, clientSecret, freeQuota, desiredQuota))
-                .orElseGet(() -> new PaymentProperties(ourUrl, clientSecret, freeQuota, desiredQuota));
+        return AsyncBank.await(getPaymentPropertiesAsync(username, newClientSecret, ourUrl));
+    }
+
+    /**
+     *  Any new client secret is generated without blocking the calling thread on the bank. Otherwise one may be prepared
+     *  in the background, ready for when the user adds a card.
+     */
+    public CompletableFuture<PaymentProperties> getPaymentPropertiesAsync(String username, boolean newClientSecret, String ourUrl) {
+        UserState user = getUserState(username);
+        CompletableFuture<Optional<String>> clientSecret;
+        if (newClientSecret)
+            clientSecret = generateClientSecret(username, user).thenApply(Optional::of);
+        else {
+            prewarmClientSecret(username, user);
+            clientSecret = CompletableFuture.completedFuture(Optional.empty());
+        }
+        long freeQuota = user.getFreeQuota().val;
+        long desiredQuota = user.getDesiredQuota().val;
+        Optional<String> error = user.getError();
+        return clientSecret.thenApply(secret -> error
+                .map(err -> PaymentProperties.errored(ourUrl, err, secret, freeQuota, desiredQuota))
+                .orElseGet(() -> new PaymentProperties(ourUrl, secret, freeQuota, desiredQuota)));
     }
 
     public String generateClientSecret(String username) {
-        if (! userStates.hasUser(username))
-            throw new IllegalStateException("Unknown user: " + username);
-        CustomerResult customer = userStates.getCustomer(username);
-        if (customer == null) {
-            customer = bank.createCustomer(username);
-            userStates.setCustomer(username, customer);
+        return AsyncBank.await(generateClientSecret(username, getUserState(username)));
+    }
+
+    private CompletableFuture<String> generateClientSecret(String username, UserState user) {
+        return newSetupIntent(username, user).thenApply(intent -> intent.clientSecret);
+    }
+
+    private CompletableFuture<IntentResult> newSetupIntent(String username, UserState user) {
+        CustomerResult customer = user.getCustomer();
+        if (customer != null) {
+            Optional<IntentResult> pooled = intentPool.isEnabled() ?
+                    intentPool.take(username, customer, LocalDateTime.now()) :
+                    Optional.empty();
+            return pooled.map(CompletableFuture::completedFuture)
+                    .orElseGet(() -> bank.setupIntentAsync(customer).thenApply(intent -> {
+                        intentPool.handedOut(customer);
+                        return intent;
+                    }));
         }
-        return bank.setupIntent(customer).clientSecret;
+        // make sure we only create one customer per user
+        return userLocks.withLockAsync(username, () -> createCustomerAndIntent(username));
+    }
+
+    /**
+     *  Only for users who pay, or want to, and already have a customer, so this never takes the user's lock. Any intent
+     *  the customer hasn't confirmed is reused, so views that never open the card form don't leave new intents behind.
+     */
+    private void prewarmClientSecret(String username, UserState user) {
+        CustomerResult customer = user.getCustomer();
+        if (customer == null || user.getDesiredQuota().val == 0)
+            return;
+        if (! intentPool.startWarming(username, LocalDateTime.now()))
+            return;
+        bank.findSetupIntentAsync(customer).thenCompose(existing -> existing
+                .map(CompletableFuture::completedFuture)
+                .orElseGet(() -> bank.setupIntentAsync(customer))
+        ).whenComplete((intent, t) -> {
+            if (t == null) {
+                intentPool.add(username, intent);
+            } else {
+                intentPool.warmingFailed(username);
+                LOG.log(Level.WARNING, "Unable to prepare setup intent for " + username, t);
+            }
+        });
     }
 
-    public synchronized void ensureUser(String username, LocalDateTime now) {
+    public SetupIntentPool getIntentPool() {
+        return intentPool;
+    }
+
+    private CompletableFuture<IntentResult> createCustomerAndIntent(String username) {
+        UserState user = getUserState(username);
+        CustomerResult existing = user.getCustomer();
+        CompletableFuture<CustomerResult> customer = existing != null ?
+                CompletableFuture.completedFuture(existing) :
+                bank.createCustomerAsync(username).thenApply(created -> {
+                    userStates.setCustomer(username, created);
+                    return created;
+                });
+        return customer.thenCompose(bank::setupIntentAsync);
+    }
+
+    public void ensureUser(String username, LocalDateTime now) {
         ensureUser(username, defaultFreeQuota, now);
     }
 
-    public synchronized void ensureUser(String username, Natural freeSpace, LocalDateTime now) {
+    public void ensureUser(String username, Natural freeSpace, LocalDateTime now) {
         userStates.ensureUser(username, freeSpace, now);
     }
 
     /**
-     *  Take any payments and expire any old quota
+     *  Take any payments and expire any old quota. Must be called holding the user's lock, until the result completes.
      */
-    private synchronized boolean processUser(String username, LocalDateTime now) {
-        boolean processed = true;
-        Natural desiredQuotaBytes = userStates.getDesiredQuota(username);
-        if (now.isAfter(userStates.getQuotaExpiry(username).minusSeconds(1)))
-            userStates.setCurrentQuota(username, Natural.ZERO);
-
-        Natural currentQuotaBytes = userStates.getCurrentQuota(username);
-        Natural currentPrice = userStates.getCurrentPrice(username);
-        if (currentQuotaBytes.val < desiredQuotaBytes.val) {
-            Natural toPay = currentQuotaBytes.val == 0 ?
-                    currentPrice :
-                    pricer.convertBytesToCents(desiredQuotaBytes).minus(currentPrice);
-            // use any existing balance first
-            Natural currentBalanceCents = userStates.getCurrentBalance(username);
-            if (currentBalanceCents.val > 0) {
-                if (currentBalanceCents.val >= toPay.val) {
-                    userStates.setCurrentBalance(username, currentBalanceCents.minus(toPay));
-                    userStates.setCurrentQuota(username, desiredQuotaBytes);
-                    userStates.setQuotaExpiry(username, now.plusMonths(1));
-                    return true;
+    private CompletableFuture<Boolean> processUserLocked(String username, LocalDateTime now) {
+        // wait for any earlier charge to be resolved by a webhook event or reconcilePendingPayments, so we never
+        // charge for the same quota twice
+        if (! userStates.getPendingPayments(username).isEmpty()) {
+            LOG.info("Waiting for pending payment from " + username);
+            return done(false);
+        }
+        UserState user = getUserState(username);
+        Natural desiredQuotaBytes = user.getDesiredQuota();
+        Natural currentQuotaBytes = user.getQuota();
+        Natural currentBalanceCents = user.getCurrentBalance();
+        boolean expired = now.isAfter(user.getQuotaExpiry().minusSeconds(1)) && currentQuotaBytes.val > 0;
+        if (expired)
+            currentQuotaBytes = Natural.ZERO;
+
+        if (currentQuotaBytes.val >= desiredQuotaBytes.val) {
+            if (expired)
+                return done(applyBilling(username, user, currentBalanceCents, currentQuotaBytes, user.getQuotaExpiry(), user.getError()));
+            return done(true);
+        }
+        Natural currentPrice = user.getCurrentPrice();
+        Natural toPay = currentQuotaBytes.val == 0 ?
+                currentPrice :
+                pricer.convertBytesToCents(desiredQuotaBytes).minus(currentPrice);
+        // use any existing balance first
+        if (currentBalanceCents.val > 0) {
+            if (currentBalanceCents.val >= toPay.val)
+                return done(applyBilling(username, user, currentBalanceCents.minus(toPay), desiredQuotaBytes, now.plusMonths(1), user.getError()));
+        }
+        // take a payment
+        Natural remaining = toPay;
+        if (remaining.val == 0 && desiredQuotaBytes.val <= 1024*1024)
+            return done(applyBilling(username, user, currentBalanceCents, desiredQuotaBytes, now.plusMonths(1), user.getError()));
+        Natural toCharge = minPaymentCents.max(remaining);
+        Natural quotaBytes = currentQuotaBytes;
+        // record the charge first, so its outcome can be applied later if we don't get it here
+        String reference = UUID.randomUUID().toString();
+        userStates.addPendingPayment(new PendingPayment(reference, username, toCharge, toCharge.minus(remaining), desiredQuotaBytes, now));
+        CompletableFuture<PaymentResult> payment;
+        try {
+            CustomerResult customer = user.getCustomer();
+            payment = bank.takePaymentAsync(customer, toCharge, "gbp", now, desiredQuotaBytes, reference);
+        } catch (Exception e) {
+            payment = CompletableFuture.failedFuture(e);
+        }
+        return payment.handle((paymentResult, err) -> {
+            if (err == null && paymentResult.pending) {
+                LOG.info("Payment of " + paymentResult + " from " + username + " is pending");
+                return false;
+            }
+            if (err != null && BankUnavailableException.isUnavailable(err)) {
+                Throwable cause = err instanceof CompletionException ? err.getCause() : err;
+                // the bank may have taken a charge it couldn't confirm, so resolve it later under the same reference
+                if (! (cause instanceof CircuitOpenException)) {
+                    LOG.info("Payment from " + username + " has an unknown outcome, leaving it pending");
+                    return false;
                 }
+                // the charge was never sent, and the user keeps their quota until we can retry
+                if (userStates.removePendingPayment(reference))
+                    throw new CompletionException(cause);
+                return false;
             }
-            // take a payment
-            Natural remaining = toPay;
-            if (remaining.val == 0 && desiredQuotaBytes.val <= 1024*1024) {
-                userStates.setCurrentQuota(username, desiredQuotaBytes);
-                userStates.setQuotaExpiry(username, now.plusMonths(1));
-                return true;
+            // whoever removes the pending payment applies its outcome
+            if (! userStates.removePendingPayment(reference))
+                return false;
+            if (err != null) {
+                (err instanceof CompletionException ? err.getCause() : err).printStackTrace();
+                if (expired)
+                    applyBilling(username, user, currentBalanceCents, quotaBytes, user.getQuotaExpiry(), user.getError());
+                return false;
             }
-            Natural toCharge = minPaymentCents.max(remaining);
-            try {
-                CustomerResult customer = userStates.getCustomer(username);
-                PaymentResult paymentResult = bank.takePayment(customer, toCharge, "gbp", now, desiredQuotaBytes);
-                if (paymentResult.isSuccessful()) {
-                    userStates.setCurrentBalance(username, toCharge.minus(remaining));
-                    userStates.setCurrentQuota(username, desiredQuotaBytes);
-                    userStates.setQuotaExpiry(username, now.plusMonths(1));
-                    userStates.setError(username, null);
-                } else {
-                    userStates.setError(username, paymentResult.failureError.get());
-                    processed = false;
+            if (paymentResult.isSuccessful()) {
+                if (applyBilling(username, user, toCharge.minus(remaining), desiredQuotaBytes, now.plusMonths(1), Optional.empty()))
+                    return true;
+                LOG.severe("Took payment of " + paymentResult + " from " + username + " but couldn't record it!");
+                return false;
+            }
+            applyBilling(username, user, currentBalanceCents, quotaBytes, user.getQuotaExpiry(), paymentResult.failureError);
+            return false;
+        });
+    }
+
+    /**
+     *  Ask the bank for the outcome of a user's oldest pending payment and apply it, so we don't rely on a webhook
+     *  event. A charge the bank has no record of is sent again with the same reference, which the bank uses as its
+     *  idempotency key, so it can't be taken twice. Only called for payments older than PENDING_PAYMENT_RETRY_DELAY.
+     *
+     * @return whether the payment succeeded
+     */
+    private CompletableFuture<Boolean> reconcileUserAsync(String username, LocalDateTime now) {
+        return userLocks.withLockAsync(username, () -> {
+            List<PendingPayment> pending = userStates.getPendingPayments(username);
+            // a webhook event may have resolved it since we looked
+            if (pending.isEmpty())
+                return done(false);
+            return reconcileLocked(pending.get(0), now);
+        });
+    }
+
+    /**
+     *  Must be called holding the user's lock, until the result completes
+     */
+    private CompletableFuture<Boolean> reconcileLocked(PendingPayment payment, LocalDateTime now) {
+        String username = payment.username;
+        return bank.findPaymentAsync(payment.reference).thenCompose(found -> {
+            if (found.isPresent()) {
+                if (found.get().pending) {
+                    LOG.info("Waiting for pending payment from " + username);
+                    return done(false);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                processed = false;
+                return done(applyPendingLocked(payment, found.get().failureError, now) && found.get().isSuccessful());
             }
+            LOG.info("Retrying payment " + payment.reference + " from " + username + ", which the bank has no record of");
+            CustomerResult customer = getUserState(username).getCustomer();
+            return bank.takePaymentAsync(customer, payment.amount, "gbp", now, payment.quota, payment.reference)
+                    .thenApply(result -> ! result.pending &&
+                            applyPendingLocked(payment, result.failureError, now) &&
+                            result.isSuccessful());
+        });
+    }
+
+    /**
+     *  Apply the outcome of a payment that was pending when we took it
+     *
+     * @param reference The reference we gave the payment
+     * @param error Why the payment failed, if it did
+     * @return whether the payment was still pending
+     */
+    public boolean confirmPayment(String reference, Optional<String> error, LocalDateTime now) {
+        Optional<PendingPayment> pending = userStates.getPendingPayment(reference);
+        if (! pending.isPresent())
+            return false;
+        PendingPayment payment = pending.get();
+        return userLocks.withLock(payment.username, () -> applyPendingLocked(payment, error, now));
+    }
+
+    /**
+     *  Must be called holding the user's lock
+     *
+     * @return whether the payment was still pending, and so was applied here
+     */
+    private boolean applyPendingLocked(PendingPayment payment, Optional<String> error, LocalDateTime now) {
+        String username = payment.username;
+        // whoever removes the pending payment applies its outcome
+        if (! userStates.removePendingPayment(payment.reference))
+            return false;
+        UserState user = getUserState(username);
+        if (! error.isPresent()) {
+            if (! applyBilling(username, user, payment.balance, payment.quota, payment.created.plusMonths(1), Optional.empty()))
+                LOG.severe("Took payment of " + payment.amount + " cents from " + username + " but couldn't record it!");
+            return true;
         }
-        return processed;
+        boolean expired = now.isAfter(user.getQuotaExpiry().minusSeconds(1));
+        Natural quota = expired ? Natural.ZERO : user.getQuota();
+        applyBilling(username, user, user.getCurrentBalance(), quota, user.getQuotaExpiry(), error);
+        return true;
     }
 
-    public synchronized void setDesiredQuota(String username, Natural quota, LocalDateTime now) {
+    private static CompletableFuture<Boolean> done(boolean result) {
+        return CompletableFuture.completedFuture(result);
+    }
+
+    /**
+     *  Write a user's new billing state in a single update, provided nobody else has changed their expiry since we
+     *  read previous
+     */
+    private boolean applyBilling(String username,
+                                 UserState previous,
+                                 Natural balance,
+                                 Natural quota,
+                                 LocalDateTime expiry,
+                                 Optional<String> error) {
+        if (userStates.applyBilling(username, previous.getQuotaExpiry(), balance, quota, expiry, error))
+            return true;
+        LOG.warning("Concurrent billing of " + username + ", expiry is no longer " + previous.getQuotaExpiry());
+        return false;
+    }
+
+    public void setDesiredQuota(String username, Natural quota, LocalDateTime now) {
         if (! allowedQuotas.contains(quota))
             throw new IllegalStateException("Invalid quota requested: " + quota.val);
-        userStates.ensureUser(username, defaultFreeQuota, now);
-        userStates.setDesiredQuota(username, quota, now);
-        userStates.setCurrentPrice(username, pricer.convertBytesToCents(quota));
-        processUser(username, now);
+        userLocks.withLock(username, () -> {
+            userStates.ensureUser(username, defaultFreeQuota, now);
+            userStates.setDesiredQuota(username, quota, now);
+            userStates.setCurrentPrice(username, pricer.convertBytesToCents(quota));
+            try {
+                AsyncBank.await(processUserLocked(username, now));
+            } catch (BankUnavailableException e) {
+                LOG.info("Bank unavailable, deferring payment from " + username);
+                deferredUsers.add(username);
+            }
+        });
+    }
+
+    public List<Pair<String, LocalDateTime>> getExpiringUsers(LocalDateTime before) {
+        return userStates.getExpiringUsers(before);
+    }
+
+    /**
+     *  Take any payment due from a single user and expire any old quota
+     *
+     * @return whether the user is fully paid up
+     */
+    public boolean processUser(String username, LocalDateTime now) {
+        return AsyncBank.await(processUserAsync(username, now));
     }
 
-    public synchronized Triple<Integer, Integer, Integer> processAll(LocalDateTime now) {
-        int successCount = 0;
-        int failureCount = 0;
-        int exceptionCount = 0;
-        for (String username : getAllUsernames()) {
+    /**
+     *  The user's lock is held until the returned future completes, without tying up a thread while we wait for the bank
+     */
+    public CompletableFuture<Boolean> processUserAsync(String username, LocalDateTime now) {
+        return userLocks.withLockAsync(username, () -> processUserLocked(username, now))
+                .whenComplete((r, err) -> {
+                    if (err != null && BankUnavailableException.isUnavailable(err))
+                        deferredUsers.add(username);
+                });
+    }
+
+    public int deferredUserCount() {
+        return deferredUsers.size();
+    }
+
+    /**
+     *  Retry the users we couldn't bill because the bank was unavailable
+     *
+     * @return the number of users processed successfully, who failed, and who threw an exception
+     */
+    public Triple<Integer, Integer, Integer> retryDeferred(LocalDateTime now) {
+        List<String> users = new ArrayList<>(deferredUsers);
+        deferredUsers.removeAll(users);
+        return process(users, now, this::processUserAsync);
+    }
+
+    /**
+     *  Resolve the payments that have been pending for PENDING_PAYMENT_RETRY_DELAY, whether or not we have a webhook to
+     *  hear about them
+     *
+     * @return the number of users whose payment succeeded, who are still pending or failed, and who threw an exception
+     */
+    public Triple<Integer, Integer, Integer> reconcilePendingPayments(LocalDateTime now) {
+        return process(userStates.getUsersWithPendingPayments(now.minus(PENDING_PAYMENT_RETRY_DELAY)), now,
+                this::reconcileUserAsync);
+    }
+
+    /**
+     *  Bill every user that is due, with up to billingThreads users' payments in flight at once
+     *
+     * @return the number of users processed successfully, who failed, and who threw an exception
+     */
+    public Triple<Integer, Integer, Integer> processAll(LocalDateTime now) {
+        return process(userStates.getUsersToProcess(now), now, this::processUserAsync);
+    }
+
+    /**
+     *  If the bank's circuit breaker opens the remaining users are deferred, rather than waiting for each call to fail
+     */
+    private Triple<Integer, Integer, Integer> process(List<String> users,
+                                                      LocalDateTime now,
+                                                      BiFunction<String, LocalDateTime, CompletableFuture<Boolean>> task) {
+        AtomicInteger successCount = new AtomicInteger(0);
+        AtomicInteger failureCount = new AtomicInteger(0);
+        AtomicInteger exceptionCount = new AtomicInteger(0);
+        AtomicBoolean bankUnavailable = new AtomicBoolean(false);
+        Semaphore inFlight = new Semaphore(billingThreads);
+        // each user appears once, so is only billed once per run
+        for (String username : users) {
+            inFlight.acquireUninterruptibly();
+            if (bankUnavailable.get()) {
+                deferredUsers.add(username);
+                inFlight.release();
+                continue;
+            }
+            CompletableFuture<Boolean> result;
             try {
-                if (processUser(username, now)) {
-                    successCount++;
-                } else {
-                    failureCount++;
+                result = task.apply(username, now);
+            } catch (Throwable t) {
+                result = CompletableFuture.failedFuture(t);
+            }
+            result.whenComplete((success, err) -> {
+                try {
+                    if (err != null && BankUnavailableException.isUnavailable(err)) {
+                        // stop calling the bank once its circuit breaker has opened
+                        if ((err instanceof CompletionException ? err.getCause() : err) instanceof CircuitOpenException)
+                            bankUnavailable.set(true);
+                        exceptionCount.incrementAndGet();
+                    } else if (err != null) {
+                        LOG.log(Level.SEVERE, "Unable to process user:" + username, err);
+                        exceptionCount.incrementAndGet();
+                    } else if (success) {
+                        successCount.incrementAndGet();
+                    } else {
+                        failureCount.incrementAndGet();
+                    }
+                } finally {
+                    inFlight.release();
                 }
-            } catch (Throwable err) {
-                LOG.log(Level.SEVERE,"Unable to process user:" + username, err);
-                exceptionCount++;
+            });
+        }
+        // wait for the last payments to complete
+        inFlight.acquireUninterruptibly(billingThreads);
+        if (bankUnavailable.get() || ! deferredUsers.isEmpty())
+            LOG.warning("Bank unavailable, " + deferredUsers.size() + " users deferred");
+        return new Triple<>(successCount.get(), failureCount.get(), exceptionCount.get());
+    }
+
+    /**
+     * @return the current quota of each of the given users, in a few queries rather than one per user. Unknown users
+     * are created as in getCurrentQuota, if we are accepting signups, and otherwise left out.
+     */
+    public Map<String, Long> getCurrentQuotas(List<String> usernames) {
+        Map<String, UserState> users = userStates.getUserStates(usernames);
+        Map<String, Long> res = new HashMap<>();
+        for (String username : usernames) {
+            UserState user = users.get(username);
+            if (user != null) {
+                res.put(username, user.getQuota().val + user.getFreeQuota().val);
+                continue;
+            }
+            try {
+                res.put(username, getCurrentQuota(username));
+            } catch (IllegalStateException e) {
+                LOG.info("Unknown user in quota lookup: " + username);
             }
         }
-        return new Triple<>(successCount, failureCount, exceptionCount);
+        return res;
     }
 
-    public synchronized long getCurrentQuota(String username) {
-        if (! userStates.hasUser(username)) {
-            if (acceptingSignups()) {
-                ensureUser(username, defaultFreeQuota, LocalDateTime.now());
-                return defaultFreeQuota.val;
+    public long getCurrentQuota(String username) {
+        Optional<UserState> user = userStates.getUserState(username);
+        if (! user.isPresent()) {
+            synchronized (signupLock) {
+                if (acceptingSignups()) {
+                    ensureUser(username, defaultFreeQuota, LocalDateTime.now());
+                    return defaultFreeQuota.val;
+                }
             }
             throw new IllegalStateException("Unknown user " + username);
         }
-        return userStates.getCurrentQuota(username).val + userStates.getFreeQuota(username).val;
+        return user.get().getQuota().val + user.get().getFreeQuota().val;
     }
 }
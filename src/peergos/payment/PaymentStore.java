@@ -4,6 +4,8 @@ import peergos.payment.util.*;
 
 import java.time.*;
 import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 public interface PaymentStore {
 
@@ -11,8 +13,47 @@ public interface PaymentStore {
 
     boolean hasUser(String username);
 
+    /**
+     * @return a snapshot of the user's whole row, read in a single query, or empty if there is no such user
+     */
+    Optional<UserState> getUserState(String username);
+
+    /**
+     * @return snapshots of those of the given users who exist, read in as few queries as possible
+     */
+    Map<String, UserState> getUserStates(List<String> usernames);
+
     List<String> getAllUsernames();
 
+    /**
+     * Pass every username to consumer, without holding them all in memory. The number of usernames that will be passed
+     * is given to onCount first, from the same read as the usernames, so callers can size their output.
+     */
+    void streamUsernames(LongConsumer onCount, Consumer<String> consumer);
+
+    /**
+     * @return the number of users whose quota, free quota or expiry has changed since the change afterSeq. This can only
+     * grow, as a user changed again gets a larger sequence number.
+     */
+    long countQuotaChanges(long afterSeq);
+
+    /**
+     * Pass up to maxCount users whose quota, free quota or expiry has changed since the change with sequence number
+     * afterSeq, in sequence order, with their current state. A user changed several times is only passed once. Changes
+     * become visible in sequence order, so a caller continuing from the last seq it received never misses one.
+     */
+    void streamQuotaChanges(long afterSeq, long maxCount, Consumer<QuotaChange> consumer);
+
+    /**
+     * @return the users whose paid quota has expired by now, or who want more quota than they have
+     */
+    List<String> getUsersToProcess(LocalDateTime now);
+
+    /**
+     * @return the users with paid quota which expires by the given time, and when it expires
+     */
+    List<Pair<String, LocalDateTime>> getExpiringUsers(LocalDateTime before);
+
     boolean addToken(String token);
 
     boolean hasToken(String token);
@@ -21,6 +62,20 @@ public interface PaymentStore {
 
     void ensureUser(String username, Natural freeSpace, LocalDateTime now);
 
+    /**
+     * Create every user in the stream that doesn't already exist, with the paired free quota
+     *
+     * @return the number of users created
+     */
+    long ensureUsers(Stream<Pair<String, Natural>> usersAndFreeSpace, LocalDateTime now);
+
+    /**
+     * Set the free quota of every existing user in the stream
+     *
+     * @return the number of users updated
+     */
+    long setFreeQuotas(Stream<Pair<String, Natural>> freeQuotas);
+
     void setCustomer(String username, CustomerResult customer);
     CustomerResult getCustomer(String username);
 
@@ -44,4 +99,32 @@ public interface PaymentStore {
 
     void setError(String username, String error);
     Optional<String> getError(String username);
+
+    /**
+     * Atomically set the balance, quota, expiry and error for a user, but only if their expiry is still previousExpiry
+     *
+     * @return whether the update was applied
+     */
+    boolean applyBilling(String username,
+                         LocalDateTime previousExpiry,
+                         Natural balance,
+                         Natural quota,
+                         LocalDateTime expiry,
+                         Optional<String> error);
+
+    void addPendingPayment(PendingPayment payment);
+
+    Optional<PendingPayment> getPendingPayment(String reference);
+
+    /**
+     * @return the user's pending payments, oldest first
+     */
+    List<PendingPayment> getPendingPayments(String username);
+
+    /**
+     * @return the users with a pending payment created before the given time
+     */
+    List<String> getUsersWithPendingPayments(LocalDateTime createdBefore);
+
+    boolean removePendingPayment(String reference);
 }
@@ -0,0 +1,32 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+
+import java.time.*;
+
+/**
+ * A charge we have sent to the bank whose outcome we don't know yet, and what to apply to the user if it succeeds
+ */
+public class PendingPayment {
+
+    public final String reference;
+    public final String username;
+    public final Natural amount;
+    public final Natural balance;
+    public final Natural quota;
+    public final LocalDateTime created;
+
+    public PendingPayment(String reference,
+                          String username,
+                          Natural amount,
+                          Natural balance,
+                          Natural quota,
+                          LocalDateTime created) {
+        this.reference = reference;
+        this.username = username;
+        this.amount = amount;
+        this.balance = balance;
+        this.quota = quota;
+        this.created = created;
+    }
+}
@@ -0,0 +1,40 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+import peergos.shared.cbor.*;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * The latest state of a user whose quota, free quota or expiry has changed, with the sequence number of the change
+ */
+public class QuotaChange {
+
+    public final long seq;
+    public final String username;
+    public final Natural quota;
+    public final Natural freeQuota;
+    public final LocalDateTime expiry;
+
+    public QuotaChange(long seq, String username, Natural quota, Natural freeQuota, LocalDateTime expiry) {
+        this.seq = seq;
+        this.username = username;
+        this.quota = quota;
+        this.freeQuota = freeQuota;
+        this.expiry = expiry;
+    }
+
+    /**
+     *  The quota is the total, including any free quota, like quota-by-name
+     */
+    public CborObject toCbor() {
+        Map<String, Cborable> res = new TreeMap<>();
+        res.put("seq", new CborObject.CborLong(seq));
+        res.put("name", new CborObject.CborString(username));
+        res.put("quota", new CborObject.CborLong(quota.val + freeQuota.val));
+        res.put("free", new CborObject.CborLong(freeQuota.val));
+        res.put("expiry", new CborObject.CborLong(expiry.toEpochSecond(ZoneOffset.UTC)));
+        return CborObject.CborMap.build(res);
+    }
+}
@@ -0,0 +1,102 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A Bank that limits the rate of calls to another Bank across all threads. Asynchronous calls are delayed rather than
+ * blocking the caller.
+ */
+public class RateLimitedBank implements Bank, AsyncBank {
+
+    private final Bank target;
+    private final AsyncBank asyncTarget;
+    private final TokenBucket limiter;
+
+    public RateLimitedBank(Bank target, TokenBucket limiter) {
+        this(target, limiter, AsyncBank.defaultExecutor());
+    }
+
+    public RateLimitedBank(Bank target, TokenBucket limiter, Executor bankExecutor) {
+        this.target = target;
+        this.asyncTarget = AsyncBank.of(target, bankExecutor);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public CustomerResult createCustomer(String username) {
+        limiter.acquire();
+        return target.createCustomer(username);
+    }
+
+    @Override
+    public IntentResult setupIntent(CustomerResult cus) {
+        limiter.acquire();
+        return target.setupIntent(cus);
+    }
+
+    @Override
+    public PaymentResult takePayment(CustomerResult cus,
+                                     Natural cents,
+                                     String currency,
+                                     LocalDateTime now,
+                                     Natural forQuota,
+                                     String reference) {
+        limiter.acquire();
+        return target.takePayment(cus, cents, currency, now, forQuota, reference);
+    }
+
+    @Override
+    public Optional<PaymentResult> findPayment(String reference) {
+        limiter.acquire();
+        return target.findPayment(reference);
+    }
+
+    @Override
+    public Optional<IntentResult> findSetupIntent(CustomerResult cus) {
+        limiter.acquire();
+        return target.findSetupIntent(cus);
+    }
+
+    private <T> CompletableFuture<T> afterToken(Supplier<CompletableFuture<T>> task) {
+        long waitNanos = limiter.reserve();
+        if (waitNanos <= 0)
+            return task.get();
+        return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS))
+                .thenCompose(x -> task.get());
+    }
+
+    @Override
+    public CompletableFuture<CustomerResult> createCustomerAsync(String username) {
+        return afterToken(() -> asyncTarget.createCustomerAsync(username));
+    }
+
+    @Override
+    public CompletableFuture<IntentResult> setupIntentAsync(CustomerResult cus) {
+        return afterToken(() -> asyncTarget.setupIntentAsync(cus));
+    }
+
+    @Override
+    public CompletableFuture<PaymentResult> takePaymentAsync(CustomerResult cus,
+                                                             Natural cents,
+                                                             String currency,
+                                                             LocalDateTime now,
+                                                             Natural forQuota,
+                                                             String reference) {
+        return afterToken(() -> asyncTarget.takePaymentAsync(cus, cents, currency, now, forQuota, reference));
+    }
+
+    @Override
+    public CompletableFuture<Optional<PaymentResult>> findPaymentAsync(String reference) {
+        return afterToken(() -> asyncTarget.findPaymentAsync(reference));
+    }
+
+    @Override
+    public CompletableFuture<Optional<IntentResult>> findSetupIntentAsync(CustomerResult cus) {
+        return afterToken(() -> asyncTarget.findSetupIntentAsync(cus));
+    }
+}
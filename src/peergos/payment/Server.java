@@ -11,16 +11,13 @@ import peergos.server.storage.admin.*;
 import peergos.shared.corenode.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
-import peergos.shared.util.Triple;
 
 import java.io.*;
 import java.net.*;
 import java.nio.file.*;
 import java.sql.*;
 import java.time.Duration;
-import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.LocalTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
@@ -32,16 +29,28 @@ public class Server {
     public static final String UI_URL = "/";
 
     public static final int HANDLER_THREADS = 50;
+    public static final int MAX_PENDING_REQUESTS = 1000;
     public static final int CONNECTION_BACKLOG = 100;
 
     private final PaymentState state;
     private final ContentAddressedStorage dht;
     private final CoreNode core;
-
-    public Server(PaymentState state, ContentAddressedStorage dht, CoreNode core) {
+    private final int usernameCacheSize;
+    private final Duration usernameCacheTtl;
+    private final MetricsRegistry metrics;
+
+    public Server(PaymentState state,
+                  ContentAddressedStorage dht,
+                  CoreNode core,
+                  int usernameCacheSize,
+                  Duration usernameCacheTtl,
+                  MetricsRegistry metrics) {
         this.state = state;
         this.dht = dht;
         this.core = core;
+        this.usernameCacheSize = usernameCacheSize;
+        this.usernameCacheTtl = usernameCacheTtl;
+        this.metrics = metrics;
     }
 
     public void initAndStart(String publicUrl,
@@ -49,11 +58,28 @@ public class Server {
                              InetSocketAddress privateApi,
                              Optional<Path> webroot,
                              String peergosUrl,
-                             boolean useWebCache) throws IOException {
+                             boolean useWebCache,
+                             Optional<StripeWebhookHandler> stripeWebhook,
+                             ExecutorMode executorMode,
+                             int handlerThreads,
+                             int maxPendingRequests) throws IOException {
         LOG.info("Starting Payment server private api at: " + privateApi);
         HttpServer privateServer = HttpServer.create(privateApi, CONNECTION_BACKLOG);
-        privateServer.createContext("/" + HttpQuotaAdmin.QUOTA_URL, new QuotaHandler(state, dht, core, publicUrl));
-        privateServer.setExecutor(Executors.newFixedThreadPool(HANDLER_THREADS));
+        AdmissionExecutor privateExecutor = new AdmissionExecutor(
+                executorMode.build(handlerThreads, "Private api"), maxPendingRequests);
+        QuotaHandler quotas = new QuotaHandler(state, dht, core, publicUrl, usernameCacheSize, usernameCacheTtl, metrics);
+        privateServer.createContext("/" + HttpQuotaAdmin.QUOTA_URL, quotas).getFilters().add(privateExecutor.filter());
+        privateServer.createContext(MetricsHandler.URL, new MetricsHandler(metrics)).getFilters().add(privateExecutor.filter());
+        TtlCache<?, ?> usernames = quotas.getUsernameCache();
+        metrics.counter("username_cache_hits_total", "Owner to username cache hits", usernames::getHits);
+        metrics.counter("username_cache_misses_total", "Owner to username cache misses", usernames::getMisses);
+        metrics.gauge("username_cache_size", "Owner to username cache entries", usernames::size);
+        TtlCache<?, ?> keys = quotas.getAuth().getKeyCache();
+        metrics.counter("signing_key_cache_hits_total", "Owner signing key cache hits", keys::getHits);
+        metrics.counter("signing_key_cache_misses_total", "Owner signing key cache misses", keys::getMisses);
+        metrics.counter("private_api_rejected_total", "Private api requests rejected when overloaded",
+                privateExecutor::getRejectedRequests);
+        privateServer.setExecutor(privateExecutor);
         privateServer.start();
 
         LOG.info("Starting Payment server public api at: " + publicApi);
@@ -72,9 +98,15 @@ public class Server {
             handler = handler.withCache();
         }
 
-        publicServer.createContext(UI_URL, handler);
+        AdmissionExecutor publicExecutor = new AdmissionExecutor(
+                executorMode.build(handlerThreads, "Public api"), maxPendingRequests);
+        publicServer.createContext(UI_URL, handler).getFilters().add(publicExecutor.filter());
+        stripeWebhook.ifPresent(webhook -> publicServer.createContext(StripeWebhookHandler.URL, webhook)
+                .getFilters().add(publicExecutor.filter()));
 
-        publicServer.setExecutor(Executors.newFixedThreadPool(HANDLER_THREADS));
+        metrics.counter("public_api_rejected_total", "Public api requests rejected when overloaded",
+                publicExecutor::getRejectedRequests);
+        publicServer.setExecutor(publicExecutor);
         publicServer.start();
     }
 
@@ -89,74 +121,103 @@ public class Server {
         return new InetSocketAddress(addr.substring(0, split), Integer.parseInt(addr.substring(split + 1)));
     }
 
-    private static void startPeriodicPaymentProcessor(PaymentState state, LocalTime atTime) {
-        
-        Runnable periodicPaymentTask = () -> {
-            LocalDateTime nextInvocation = LocalDateTime.of(LocalDate.now(), atTime);
-
-            Duration duration = Duration.between(LocalDateTime.now(), nextInvocation);
-            if (duration.isNegative()) {
-                nextInvocation = nextInvocation.plusDays(1);
-            }
-            while (true) {
-                LocalDateTime now = LocalDateTime.now();
-                if (now.isAfter(nextInvocation)) {
-                    nextInvocation = nextInvocation.plusDays(1);
-                    try {
-                        LOG.info("Starting Periodic payment run. User count: " + state.userCount());
-                        Triple<Integer, Integer, Integer> stats = state.processAll(now);
-                        LOG.info("Completed Periodic payment run. " + " success count: " + stats.left +
-                                " failure count: " + stats.middle + " exception count: " + stats.right);
-                    } catch (Throwable t) {
-                        LOG.log(Level.SEVERE, "Unexpected Exception occurred", t);
-                    }
-                }
-                try {
-                    Thread.sleep(1000 * 60 * 30);
-                } catch (InterruptedException ie) { }
-            }
-        };
-        Thread process = new Thread(periodicPaymentTask);
-        process.start();
+    private static Pair<String, Natural> parseQuotaLine(String line) {
+        String[] split = line.split(" ");
+        String username = split[0];
+        String quota = split[1].trim();
+        long quotaBytes = Long.parseLong(quota);
+        if (line.endsWith(" MiB"))
+            quotaBytes *= 1024*1024;
+        if (line.endsWith(" GiB"))
+            quotaBytes *= 1024L*1024*1024;
+        return new Pair<>(username, Natural.of(quotaBytes));
     }
 
     public static void main(String[] args) throws Exception {
         Main.initCrypto();
         Args a = Args.parse(args);
+        MetricsRegistry metrics = new MetricsRegistry();
 
         String stripe_secret_key = a.getArg("stripe-secret");
         String stripe_public_key = a.getArg("stripe-public");
-        Bank bank = new StripeProcessor(stripe_secret_key);
+        // Stripe allows 100 requests per second in live mode
+        double maxStripeRequestsPerSecond = Double.parseDouble(a.getArg("max-stripe-requests-per-second", "80"));
+        StripeProcessor stripe = new StripeProcessor(stripe_secret_key,
+                a.getArg("stripe-url", StripeProcessor.STRIPE_API),
+                Duration.ofSeconds(a.getLong("stripe-connect-timeout", StripeProcessor.DEFAULT_CONNECT_TIMEOUT.getSeconds())),
+                Duration.ofSeconds(a.getLong("stripe-request-timeout", StripeProcessor.DEFAULT_REQUEST_TIMEOUT.getSeconds())),
+                Duration.ofDays(a.getLong("card-cache-days", StripeProcessor.DEFAULT_CARD_CACHE_TTL.toDays())),
+                maxStripeRequestsPerSecond > 0 ?
+                        Optional.of(new TokenBucket(maxStripeRequestsPerSecond, Math.max(1, maxStripeRequestsPerSecond))) :
+                        Optional.empty(),
+                a.getInt("stripe-max-retries", StripeProcessor.DEFAULT_MAX_RETRIES));
+        // every blocking bank call runs on this one pool, so it bounds the threads they can use
+        ExecutorService bankExecutor = AsyncBank.newExecutor(a.getInt("bank-threads", AsyncBank.DEFAULT_THREADS));
+        CircuitBreakerBank breaker = new CircuitBreakerBank(stripe,
+                a.getInt("bank-breaker-failures", 5),
+                Duration.ofSeconds(a.getLong("bank-breaker-open-seconds", 60)),
+                bankExecutor);
+        double maxBankCallsPerSecond = Double.parseDouble(a.getArg("max-bank-calls-per-second", "0"));
+        Bank limitedBank = maxBankCallsPerSecond > 0 ?
+                new RateLimitedBank(breaker, new TokenBucket(maxBankCallsPerSecond, Math.max(1, maxBankCallsPerSecond)),
+                        bankExecutor) :
+                breaker;
+        Bank bank = new MetricsBank(limitedBank, metrics, bankExecutor);
+        metrics.counter("stripe_throttled_total", "Stripe requests delayed by the rate limit", stripe::getThrottledCalls);
+        metrics.counter("stripe_retried_total", "Stripe requests retried", stripe::getRetriedCalls);
+        metrics.gauge("stripe_cached_cards", "Customers with a cached card", stripe::cachedCards);
+        // 0 is closed, 1 open and 2 half open
+        metrics.gauge("bank_breaker_state", "State of the bank circuit breaker", () -> breaker.getState().ordinal());
+        metrics.counter("bank_breaker_rejected_total", "Bank calls rejected by the circuit breaker", breaker::getRejectedCalls);
+        metrics.counter("bank_breaker_opened_total", "Times the bank circuit breaker opened", breaker::getOpenCount);
+        int billingThreads = a.getInt("billing-threads", 1);
         Natural minPayment = new Natural(a.getLong("min-payment", 500));
         Natural defaultFreeQuota = new Natural(a.getLong("free-quota", 100 * 1024*1024L));
         int maxUsers = a.getInt("max-users");
         Set<Natural> allowedQuotas = new HashSet<>(Builder.parseQuotas(a));
 
         Supplier<Connection> database = Builder.getDBConnector(a, "payment-store-sql-file");
-        PaymentStore store = new SqlPaymentStore(database, a.getBoolean("use-postgres", false));
+        PaymentStore sqlStore = new MetricsPaymentStore(
+                new SqlPaymentStore(database, a.getBoolean("use-postgres", false)), metrics);
+        int userCacheSize = a.getInt("user-cache-size", 10_000);
+        PaymentStore store = sqlStore;
+        if (userCacheSize > 0) {
+            // other writers to the same database, like LoadPaymentStore, are seen once a user's snapshot expires
+            CachingPaymentStore cache = new CachingPaymentStore(sqlStore, userCacheSize,
+                    Duration.ofSeconds(a.getLong("user-cache-seconds", CachingPaymentStore.DEFAULT_TTL.getSeconds())));
+            metrics.counter("user_cache_hits_total", "User cache hits", cache::getHits);
+            metrics.counter("user_cache_misses_total", "User cache misses", cache::getMisses);
+            metrics.counter("user_cache_evictions_total", "User cache evictions", cache::getEvictions);
+            metrics.gauge("user_cache_size", "User cache entries", cache::size);
+            store = cache;
+        }
         if (a.hasArg("update-quotas")) {
             // load free quotas from file (the output of java Peergos.jar quota show
             String filepath = a.getArg("update-quotas");
-            List<String> lines = Files.readAllLines(Paths.get(filepath));
-            for (String line : lines) {
-                String[] split = line.split(" ");
-                String username = split[0];
-                String quota = split[1].trim();
-                long quotaBytes = Long.parseLong(quota);
-                if (line.endsWith(" MiB"))
-                    quotaBytes *= 1024*1024;
-                if (line.endsWith(" GiB"))
-                    quotaBytes *= 1024L*1024*1024;
-                store.ensureUser(username, Natural.of(quotaBytes), LocalDateTime.now());
+            try (Stream<String> lines = Files.lines(Paths.get(filepath))) {
+                long added = store.ensureUsers(lines.map(Server::parseQuotaLine), LocalDateTime.now());
+                LOG.info("Added " + added + " users from " + filepath);
             }
         }
         Pricer pricer = Builder.buildPricer(a);
-        PaymentState state = new PaymentState(store, pricer, minPayment, bank, defaultFreeQuota, maxUsers, allowedQuotas);
+        // a pooled intent is only handed out when the customer is about to add a new card
+        SetupIntentPool intentPool = new SetupIntentPool(a.getInt("setup-intent-pool-size", 1000),
+                Duration.ofMinutes(a.getLong("setup-intent-pool-minutes", SetupIntentPool.DEFAULT_TTL.toMinutes())),
+                stripe::invalidateCard);
+        PaymentState state = new PaymentState(store, pricer, minPayment, bank, defaultFreeQuota, maxUsers, allowedQuotas,
+                billingThreads, intentPool, bankExecutor);
+        metrics.gauge("deferred_users", "Users whose billing is deferred until the bank is available", state::deferredUserCount);
+        metrics.gauge("setup_intent_pool_size", "Pre-created setup intents", intentPool::size);
+        metrics.counter("setup_intent_pool_hits_total", "Client secrets served from the pool", intentPool::getHits);
+        metrics.counter("setup_intent_pool_misses_total", "Client secrets created on demand", intentPool::getMisses);
 
         JavaPoster poster = new JavaPoster(new URL("http://" + a.getArg("peergos-address")), true);
         ContentAddressedStorage.HTTP dht = new ContentAddressedStorage.HTTP(poster, true);
         HTTPCoreNode core = new HTTPCoreNode(poster);
-        Server daemon = new Server(state, dht, core);
+        Server daemon = new Server(state, dht, core,
+                a.getInt("username-cache-size", QuotaHandler.DEFAULT_USERNAME_CACHE_SIZE),
+                Duration.ofMinutes(a.getLong("username-cache-minutes", QuotaHandler.DEFAULT_USERNAME_CACHE_TTL.toMinutes())),
+                metrics);
 
         String publicUrl = a.getArg("public-api-address", "http://localhost:7000") + "/addcard.html?stripe_public=" + stripe_public_key;
         InetSocketAddress publicListener = parseAddress(a.getArg("public-listener-address", publicUrl));
@@ -167,9 +228,27 @@ public class Server {
         boolean useWebAssetCache = a.getBoolean("webcache", true);
         String publicPeergosUrl = a.getArg("public-peergos-url", "http://localhost:8000");
 
-        daemon.initAndStart(publicUrl, publicListener, privateApi, webroot, publicPeergosUrl, useWebAssetCache);
+        Optional<StripeWebhookHandler> stripeWebhook = Optional.empty();
+        if (a.hasArg("stripe-webhook-secret")) {
+            StripeEventProcessor events = new StripeEventProcessor(state, stripe::invalidateCard,
+                    a.getInt("stripe-event-queue-size", 1000));
+            events.start();
+            stripeWebhook = Optional.of(new StripeWebhookHandler(a.getArg("stripe-webhook-secret"), events));
+        }
+
+        // cached or virtual threads don't cap concurrency, so the pending limit is what sheds load
+        ExecutorMode executorMode = ExecutorMode.parse(a.getArg("handler-executor", "fixed"));
+        int handlerThreads = a.getInt("handler-threads", HANDLER_THREADS);
+        int maxPendingRequests = a.getInt("max-pending-requests", MAX_PENDING_REQUESTS);
+        daemon.initAndStart(publicUrl, publicListener, privateApi, webroot, publicPeergosUrl, useWebAssetCache, stripeWebhook,
+                executorMode, handlerThreads, maxPendingRequests);
 
         String dailyPaymentScheduledTime = a.getArg("daily-payment-scheduled-time", "14:00");
-        startPeriodicPaymentProcessor(state, DateUtil.toTime(dailyPaymentScheduledTime));
+        Duration renewalReloadInterval = Duration.ofMinutes(a.getInt("renewal-reload-minutes", 60));
+        Duration deferredRetryInterval = Duration.ofMinutes(a.getInt("deferred-retry-minutes", 5));
+        BillingScheduler scheduler = new BillingScheduler(state, DateUtil.toTime(dailyPaymentScheduledTime),
+                renewalReloadInterval, deferredRetryInterval, billingThreads);
+        scheduler.start();
+        metrics.gauge("scheduled_renewals", "Quota renewals queued by the billing scheduler", scheduler::queuedUsers);
     }
 }
\ No newline at end of file
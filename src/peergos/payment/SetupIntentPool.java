@@ -0,0 +1,106 @@
+package peergos.payment;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Setup intents created in the background for users who are likely to add a card soon, so the card form doesn't wait
+ * on the bank. Each user has at most one pooled intent, which is handed out once and discarded after the ttl. When
+ * full, the oldest intent is dropped.
+ */
+public class SetupIntentPool {
+    public static final Duration DEFAULT_TTL = Duration.ofHours(1);
+
+    private final int maxSize;
+    private final Duration ttl;
+    // called with the customer id when any intent is handed out, pooled or not, as the customer is about to add a new card
+    private final Consumer<String> takeListener;
+    // username => intent, oldest first
+    private final LinkedHashMap<String, IntentResult> intents = new LinkedHashMap<>();
+    private final Set<String> warming = ConcurrentHashMap.newKeySet();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public SetupIntentPool(int maxSize, Duration ttl, Consumer<String> takeListener) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.takeListener = takeListener;
+    }
+
+    public static SetupIntentPool disabled() {
+        return new SetupIntentPool(0, Duration.ZERO, c -> {});
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    private boolean isExpired(IntentResult intent, LocalDateTime now) {
+        return ! now.isBefore(intent.created.plus(ttl));
+    }
+
+    /**
+     * @return whether the caller should create an intent for this user and then call add or warmingFailed
+     */
+    public boolean startWarming(String username, LocalDateTime now) {
+        if (! isEnabled())
+            return false;
+        synchronized (this) {
+            IntentResult existing = intents.get(username);
+            if (existing != null && ! isExpired(existing, now))
+                return false;
+        }
+        return warming.add(username);
+    }
+
+    public synchronized void add(String username, IntentResult intent) {
+        warming.remove(username);
+        intents.remove(username);
+        intents.put(username, intent);
+        Iterator<String> oldest = intents.keySet().iterator();
+        while (intents.size() > maxSize) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    public void warmingFailed(String username) {
+        warming.remove(username);
+    }
+
+    public Optional<IntentResult> take(String username, CustomerResult customer, LocalDateTime now) {
+        IntentResult intent;
+        synchronized (this) {
+            intent = intents.remove(username);
+        }
+        if (intent == null || isExpired(intent, now)) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        handedOut(customer);
+        return Optional.of(intent);
+    }
+
+    /**
+     *  Call when an intent created on demand is handed out, as take does for a pooled one
+     */
+    public void handedOut(CustomerResult customer) {
+        takeListener.accept(customer.id);
+    }
+
+    public synchronized int size() {
+        return intents.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
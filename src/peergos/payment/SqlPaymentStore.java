@@ -6,14 +6,25 @@ import peergos.server.util.Logging;
 import java.sql.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
 public class SqlPaymentStore implements PaymentStore {
 
     private static final Logger LOG = Logging.LOG();
+    // SQLite allows at most 999 parameters in a statement
+    private static final int LOOKUP_BATCH_SIZE = 500;
+    private static final int USERNAME_FETCH_SIZE = 1000;
+    private static final int BATCH_SIZE = 1000;
+    private static final int BATCHES_PER_TRANSACTION = 50;
+    // an arbitrary key for the Postgres advisory lock held while sequencing quota changes
+    private static final long SEQUENCE_CHANGES_LOCK = 0x7175_6f74_6173L;
     private Supplier<Connection> conn;
     private final boolean isPostgres;
+    // Maintained by ensureUser(s) so signup checks don't need to count the table; users are never deleted
+    private final AtomicLong userCount = new AtomicLong(0);
 
     public SqlPaymentStore(Supplier<Connection> conn, boolean isPostgres) {
         this.conn = conn;
@@ -36,12 +47,81 @@ public class SqlPaymentStore implements PaymentStore {
                 "expiry " + sqlInteger() + " NOT NULL, " +
                 "error TEXT, " +
                 "balance INTEGER NOT NULL CHECK (balance >= 0));" +
-                "CREATE TABLE IF NOT EXISTS signuptokens (token varchar(64) primary key not null);";
+                "CREATE TABLE IF NOT EXISTS signuptokens (token varchar(64) primary key not null);" +
+                "CREATE TABLE IF NOT EXISTS pendingpayments " +
+                "(reference VARCHAR(64) PRIMARY KEY NOT NULL, " +
+                "name VARCHAR(32) NOT NULL, " +
+                "amount "+sqlInteger()+" NOT NULL CHECK (amount >= 0), " +
+                "balance "+sqlInteger()+" NOT NULL CHECK (balance >= 0), " +
+                "quota "+sqlInteger()+" NOT NULL CHECK (quota >= 0), " +
+                "created "+sqlInteger()+" NOT NULL);" +
+                // one row per user, whose seq is replaced by a new, larger one on each change
+                "CREATE TABLE IF NOT EXISTS quotachanges " +
+                "(seq " + (isPostgres ? "BIGSERIAL PRIMARY KEY" : "INTEGER PRIMARY KEY AUTOINCREMENT") + ", " +
+                "name VARCHAR(32) NOT NULL UNIQUE);" +
+                // changes committed by Postgres writers, until the next read of the feed gives them a seq
+                (isPostgres ? "CREATE TABLE IF NOT EXISTS quotachangelog (id BIGSERIAL PRIMARY KEY, name VARCHAR(32) NOT NULL);" : "") +
+                createIndicesStatement();
+    }
+
+    /**
+     *  Triggers to record changes to quota, free quota or expiry in quotachanges. Each must be executed separately.
+     */
+    private List<String> createTriggerStatements() {
+        String changedColumns = "quota, free, expiry";
+        // A seq taken in the writer's transaction could commit after a larger one, and a reader continuing from that
+        // would never see it. So writers only append to a log, and readers sequence what has committed.
+        if (isPostgres)
+            return Arrays.asList(
+                    "CREATE OR REPLACE FUNCTION record_quota_change() RETURNS TRIGGER AS $$ BEGIN " +
+                            "INSERT INTO quotachangelog (name) VALUES (NEW.name); " +
+                            "RETURN NEW; END; $$ LANGUAGE plpgsql;",
+                    "DROP TRIGGER IF EXISTS quotas_insert_change ON quotas;",
+                    "CREATE TRIGGER quotas_insert_change AFTER INSERT ON quotas " +
+                            "FOR EACH ROW EXECUTE PROCEDURE record_quota_change();",
+                    "DROP TRIGGER IF EXISTS quotas_update_change ON quotas;",
+                    "CREATE TRIGGER quotas_update_change AFTER UPDATE OF " + changedColumns + " ON quotas FOR EACH ROW " +
+                            "WHEN (OLD.quota <> NEW.quota OR OLD.free <> NEW.free OR OLD.expiry <> NEW.expiry) " +
+                            "EXECUTE PROCEDURE record_quota_change();");
+        // a replaced row gets a new seq, which AUTOINCREMENT never reuses
+        String recordChange = "BEGIN INSERT OR REPLACE INTO quotachanges (name) VALUES (NEW.name); END;";
+        return Arrays.asList(
+                "CREATE TRIGGER IF NOT EXISTS quotas_insert_change AFTER INSERT ON quotas " + recordChange,
+                "CREATE TRIGGER IF NOT EXISTS quotas_update_change AFTER UPDATE OF " + changedColumns + " ON quotas " +
+                        "WHEN OLD.quota <> NEW.quota OR OLD.free <> NEW.free OR OLD.expiry <> NEW.expiry " + recordChange);
+    }
+
+    /**
+     *  Record every existing user as changed, if the change table is new
+     */
+    private void backfillChanges(Connection conn) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(isPostgres ?
+                "INSERT INTO quotachanges (name) SELECT name FROM quotas " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM quotachanges) ON CONFLICT DO NOTHING;" :
+                "INSERT OR IGNORE INTO quotachanges (name) SELECT name FROM quotas " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM quotachanges);")) {
+            insert.executeUpdate();
+        }
+    }
+
+    private String createIndicesStatement() {
+        // Sqlite (3.7) doesn't support partial indices
+        if (isPostgres)
+            return "CREATE INDEX IF NOT EXISTS quotas_paid_expiry ON quotas (expiry) WHERE quota > 0;" +
+                    "CREATE INDEX IF NOT EXISTS quotas_unpaid ON quotas (name) WHERE desired > quota;" +
+                    "CREATE INDEX IF NOT EXISTS pendingpayments_name ON pendingpayments (name);";
+        return "CREATE INDEX IF NOT EXISTS quotas_expiry ON quotas (expiry);" +
+                "CREATE INDEX IF NOT EXISTS pendingpayments_name ON pendingpayments (name);";
     }
 
     private synchronized void init() {
         try {
-            createTable(createTableStatement(), conn.get());
+            Connection connection = conn.get();
+            createTable(createTableStatement(), connection);
+            for (String trigger : createTriggerStatements())
+                createTable(trigger, connection);
+            backfillChanges(connection);
+            userCount.set(countUsers());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -66,6 +146,10 @@ public class SqlPaymentStore implements PaymentStore {
 
     @Override
     public long userCount() {
+        return userCount.get();
+    }
+
+    private long countUsers() {
         try (Connection conn = getConnection();
              PreparedStatement count = conn.prepareStatement("SELECT COUNT(*) FROM quotas;")) {
             ResultSet resultSet = count.executeQuery();
@@ -93,6 +177,57 @@ public class SqlPaymentStore implements PaymentStore {
         }
     }
 
+    @Override
+    public Optional<UserState> getUserState(String username) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT free, balance, quota, desired, currentprice, expiry, customerid, error FROM quotas where name = ?;")) {
+            select.setString(1, username);
+            ResultSet resultSet = select.executeQuery();
+            if (! resultSet.next())
+                return Optional.empty();
+            return Optional.of(buildUserState(resultSet));
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public Map<String, UserState> getUserStates(List<String> usernames) {
+        Map<String, UserState> res = new HashMap<>();
+        try (Connection conn = getConnection()) {
+            for (int start = 0; start < usernames.size(); start += LOOKUP_BATCH_SIZE) {
+                List<String> batch = usernames.subList(start, Math.min(usernames.size(), start + LOOKUP_BATCH_SIZE));
+                String params = String.join(",", Collections.nCopies(batch.size(), "?"));
+                try (PreparedStatement select = conn.prepareStatement("SELECT name, free, balance, quota, desired, " +
+                        "currentprice, expiry, customerid, error FROM quotas WHERE name IN (" + params + ");")) {
+                    for (int i=0; i < batch.size(); i++)
+                        select.setString(i + 1, batch.get(i));
+                    ResultSet resultSet = select.executeQuery();
+                    while (resultSet.next())
+                        res.put(resultSet.getString("name"), buildUserState(resultSet));
+                }
+            }
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private static UserState buildUserState(ResultSet row) throws SQLException {
+        String customerId = row.getString("customerid");
+        return new UserState(
+                new Natural(row.getLong("free")),
+                new Natural(row.getLong("balance")),
+                new Natural(row.getLong("quota")),
+                new Natural(row.getLong("desired")),
+                new Natural(row.getLong("currentprice")),
+                LocalDateTime.ofEpochSecond(row.getLong("expiry"), 0, ZoneOffset.UTC),
+                customerId == null ? null : new CustomerResult(customerId),
+                Optional.ofNullable(row.getString("error")));
+    }
+
     @Override
     public boolean addToken(String token) {
         try (Connection conn = getConnection();
@@ -151,26 +286,254 @@ public class SqlPaymentStore implements PaymentStore {
         }
     }
 
+    @Override
+    public void streamUsernames(LongConsumer onCount, Consumer<String> consumer) {
+        try (Connection conn = getConnection();
+             PreparedStatement count = conn.prepareStatement("SELECT COUNT(*) FROM quotas;");
+             PreparedStatement select = conn.prepareStatement("SELECT name FROM quotas LIMIT ?;")) {
+            // Postgres only fetches rows incrementally through a cursor outside of auto commit mode, and the count and
+            // the rows then come from the same snapshot. Users are never deleted, so Sqlite has at least count rows.
+            if (isPostgres)
+                conn.setAutoCommit(false);
+            try {
+                long total;
+                try (ResultSet rs = count.executeQuery()) {
+                    rs.next();
+                    total = rs.getLong(1);
+                }
+                onCount.accept(total);
+                select.setFetchSize(USERNAME_FETCH_SIZE);
+                select.setLong(1, total);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next())
+                        consumer.accept(rs.getString(1));
+                }
+            } finally {
+                // nothing was written, and the consumer may have thrown
+                if (isPostgres) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    /**
+     *  Give the changes Postgres writers have committed a seq each, one reader at a time. Each run commits before the
+     *  next takes a seq, so seqs become visible in order, without writers waiting on each other.
+     */
+    private void sequenceChanges(Connection conn) throws SQLException {
+        conn.setAutoCommit(false);
+        // see the changes committed by the previous run once we have the lock
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        try (PreparedStatement lock = conn.prepareStatement("SELECT pg_advisory_xact_lock(?);");
+             PreparedStatement sequence = conn.prepareStatement("WITH logged AS (DELETE FROM quotachangelog RETURNING name) " +
+                     "INSERT INTO quotachanges (name) SELECT DISTINCT name FROM logged " +
+                     "ON CONFLICT (name) DO UPDATE SET seq = nextval(pg_get_serial_sequence('quotachanges', 'seq'));")) {
+            lock.setLong(1, SEQUENCE_CHANGES_LOCK);
+            lock.executeQuery().close();
+            sequence.executeUpdate();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        }
+    }
+
+    @Override
+    public long countQuotaChanges(long afterSeq) {
+        try (Connection conn = getConnection();
+             PreparedStatement count = conn.prepareStatement("SELECT COUNT(*) FROM quotachanges WHERE seq > ?;")) {
+            if (isPostgres)
+                sequenceChanges(conn);
+            count.setLong(1, afterSeq);
+            ResultSet resultSet = count.executeQuery();
+            resultSet.next();
+            return resultSet.getLong(1);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public void streamQuotaChanges(long afterSeq, long maxCount, Consumer<QuotaChange> consumer) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT c.seq, q.name, q.quota, q.free, q.expiry " +
+                     "FROM quotachanges c JOIN quotas q ON q.name = c.name WHERE c.seq > ? ORDER BY c.seq LIMIT ?;")) {
+            if (isPostgres) {
+                sequenceChanges(conn);
+                conn.setAutoCommit(false);
+            }
+            try {
+                select.setFetchSize(USERNAME_FETCH_SIZE);
+                select.setLong(1, afterSeq);
+                select.setLong(2, maxCount);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next())
+                        consumer.accept(new QuotaChange(
+                                rs.getLong("seq"),
+                                rs.getString("name"),
+                                new Natural(rs.getLong("quota")),
+                                new Natural(rs.getLong("free")),
+                                LocalDateTime.ofEpochSecond(rs.getLong("expiry"), 0, ZoneOffset.UTC)));
+                }
+            } finally {
+                if (isPostgres) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public List<String> getUsersToProcess(LocalDateTime now) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT name FROM quotas WHERE expiry <= ? AND quota > 0 " +
+                     "UNION SELECT name FROM quotas WHERE desired > quota;")) {
+            select.setLong(1, now.plusSeconds(1).toEpochSecond(ZoneOffset.UTC));
+            ResultSet rs = select.executeQuery();
+            List<String> results = new ArrayList<>();
+            while (rs.next())
+                results.add(rs.getString("name"));
+            return results;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private String insertUserStatement() {
+        String insert = "INTO quotas (name, free, desired, currentprice, quota, expiry, balance) VALUES(?, ?, ?, ?, ?, ?, ?)";
+        // Sqlite (3.7) doesn't support ON CONFLICT clauses
+        return isPostgres ?
+                "INSERT " + insert + " ON CONFLICT DO NOTHING;" :
+                "INSERT OR IGNORE " + insert + ";";
+    }
+
+    private static void setNewUser(PreparedStatement insert, String username, Natural freeSpace, LocalDateTime now) throws SQLException {
+        insert.setString(1, username);
+        insert.setLong(2, freeSpace.val);
+        insert.setLong(3, 0);
+        insert.setLong(4, 0);
+        insert.setLong(5, 0);
+        insert.setLong(6, now.toEpochSecond(ZoneOffset.UTC));
+        insert.setLong(7, 0);
+    }
+
+    @Override
+    public List<Pair<String, LocalDateTime>> getExpiringUsers(LocalDateTime before) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT name, expiry FROM quotas WHERE expiry <= ? AND quota > 0;")) {
+            select.setLong(1, before.toEpochSecond(ZoneOffset.UTC));
+            ResultSet rs = select.executeQuery();
+            List<Pair<String, LocalDateTime>> results = new ArrayList<>();
+            while (rs.next())
+                results.add(new Pair<>(rs.getString("name"), LocalDateTime.ofEpochSecond(rs.getLong("expiry"), 0, ZoneOffset.UTC)));
+            return results;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     @Override
     public void ensureUser(String username, Natural freeSpace, LocalDateTime now) {
-        if (hasUser(username))
-            return;
-        try (Connection conn = getConnection();
-             PreparedStatement insert = conn.prepareStatement("INSERT INTO quotas (name, free, desired, currentprice, quota, expiry, balance) VALUES(?, ?, ?, ?, ?, ?, ?);")) {
-            insert.setString(1, username);
-            insert.setLong(2, freeSpace.val);
-            insert.setLong(3, 0);
-            insert.setLong(4, 0);
-            insert.setLong(5, 0);
-            insert.setLong(6, now.toEpochSecond(ZoneOffset.UTC));
-            insert.setLong(7, 0);
-            insert.execute();
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(insertUserStatement())) {
+            setNewUser(insert, username, freeSpace, now);
+            if (insert.executeUpdate() == 1)
+                userCount.incrementAndGet();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public long ensureUsers(Stream<Pair<String, Natural>> usersAndFreeSpace, LocalDateTime now) {
+        try {
+            long added = executeBatched(insertUserStatement(), usersAndFreeSpace,
+                    (insert, user) -> setNewUser(insert, user.left, user.right, now));
+            userCount.addAndGet(added);
+            return added;
+        } catch (RuntimeException e) {
+            // earlier transactions may have been committed
+            userCount.set(countUsers());
+            throw e;
+        }
+    }
+
+    @Override
+    public long setFreeQuotas(Stream<Pair<String, Natural>> freeQuotas) {
+        return executeBatched("UPDATE quotas SET free = ? WHERE name = ?;", freeQuotas,
+                (update, user) -> {
+                    update.setLong(1, user.right.val);
+                    update.setString(2, user.left);
+                });
+    }
+
+    private interface RowSetter<T> {
+        void set(PreparedStatement statement, T row) throws SQLException;
+    }
+
+    /**
+     *  Apply a statement to every row in a stream using JDBC batches, committing after every few batches
+     *
+     * @return the number of rows changed
+     */
+    private <T> long executeBatched(String sql, Stream<T> rows, RowSetter<T> setter) {
+        try (Connection conn = getConnection();
+             PreparedStatement statement = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            try {
+                long changed = 0;
+                int batchSize = 0, uncommittedBatches = 0;
+                Iterator<T> iter = rows.iterator();
+                while (iter.hasNext()) {
+                    setter.set(statement, iter.next());
+                    statement.addBatch();
+                    if (++batchSize < BATCH_SIZE && iter.hasNext())
+                        continue;
+                    changed += countChanges(statement.executeBatch());
+                    batchSize = 0;
+                    if (++uncommittedBatches == BATCHES_PER_TRANSACTION) {
+                        conn.commit();
+                        uncommittedBatches = 0;
+                    }
+                }
+                conn.commit();
+                return changed;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             throw new RuntimeException(sqe);
         }
     }
 
+    private static long countChanges(int[] updateCounts) {
+        long total = 0;
+        for (int count : updateCounts)
+            if (count > 0)
+                total += count;
+        return total;
+    }
+
     @Override
     public void setCustomer(String username, CustomerResult customer) {
         try (Connection conn = getConnection();
@@ -398,4 +761,111 @@ public class SqlPaymentStore implements PaymentStore {
             throw new RuntimeException(sqe);
         }
     }
+
+    @Override
+    public boolean applyBilling(String username,
+                                LocalDateTime previousExpiry,
+                                Natural balance,
+                                Natural quota,
+                                LocalDateTime expiry,
+                                Optional<String> error) {
+        try (Connection conn = getConnection();
+             PreparedStatement update = conn.prepareStatement("UPDATE quotas SET balance = ?, quota = ?, expiry = ?, error = ? WHERE name = ? AND expiry = ?;")) {
+            update.setLong(1, balance.val);
+            update.setLong(2, quota.val);
+            update.setLong(3, expiry.toEpochSecond(ZoneOffset.UTC));
+            update.setString(4, error.orElse(null));
+            update.setString(5, username);
+            update.setLong(6, previousExpiry.toEpochSecond(ZoneOffset.UTC));
+            return update.executeUpdate() == 1;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public void addPendingPayment(PendingPayment payment) {
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO pendingpayments (reference, name, amount, balance, quota, created) VALUES(?, ?, ?, ?, ?, ?);")) {
+            insert.setString(1, payment.reference);
+            insert.setString(2, payment.username);
+            insert.setLong(3, payment.amount.val);
+            insert.setLong(4, payment.balance.val);
+            insert.setLong(5, payment.quota.val);
+            insert.setLong(6, payment.created.toEpochSecond(ZoneOffset.UTC));
+            insert.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private static PendingPayment readPendingPayment(ResultSet resultSet) throws SQLException {
+        return new PendingPayment(resultSet.getString("reference"),
+                resultSet.getString("name"),
+                new Natural(resultSet.getLong("amount")),
+                new Natural(resultSet.getLong("balance")),
+                new Natural(resultSet.getLong("quota")),
+                LocalDateTime.ofEpochSecond(resultSet.getLong("created"), 0, ZoneOffset.UTC));
+    }
+
+    @Override
+    public Optional<PendingPayment> getPendingPayment(String reference) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT reference, name, amount, balance, quota, created FROM pendingpayments WHERE reference = ?;")) {
+            select.setString(1, reference);
+            ResultSet resultSet = select.executeQuery();
+            if (! resultSet.next())
+                return Optional.empty();
+            return Optional.of(readPendingPayment(resultSet));
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public List<PendingPayment> getPendingPayments(String username) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT reference, name, amount, balance, quota, created FROM pendingpayments WHERE name = ? ORDER BY created;")) {
+            select.setString(1, username);
+            ResultSet resultSet = select.executeQuery();
+            List<PendingPayment> res = new ArrayList<>();
+            while (resultSet.next())
+                res.add(readPendingPayment(resultSet));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public List<String> getUsersWithPendingPayments(LocalDateTime createdBefore) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT DISTINCT name FROM pendingpayments WHERE created < ?;")) {
+            select.setLong(1, createdBefore.toEpochSecond(ZoneOffset.UTC));
+            ResultSet resultSet = select.executeQuery();
+            List<String> res = new ArrayList<>();
+            while (resultSet.next())
+                res.add(resultSet.getString(1));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public boolean removePendingPayment(String reference) {
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement("DELETE FROM pendingpayments WHERE reference = ?;")) {
+            delete.setString(1, reference);
+            return delete.executeUpdate() == 1;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
 }
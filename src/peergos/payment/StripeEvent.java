@@ -0,0 +1,36 @@
+package peergos.payment;
+
+import java.util.*;
+
+/**
+ * The fields we use from a Stripe webhook event
+ */
+public class StripeEvent {
+
+    public final String id;
+    public final String type;
+    public final Optional<String> paymentReference;
+    public final Optional<String> customer;
+    public final Optional<String> error;
+
+    public StripeEvent(String id,
+                       String type,
+                       Optional<String> paymentReference,
+                       Optional<String> customer,
+                       Optional<String> error) {
+        this.id = id;
+        this.type = type;
+        this.paymentReference = paymentReference;
+        this.customer = customer;
+        this.error = error;
+    }
+
+    public static StripeEvent parse(String json) {
+        return StripeJson.parseEvent(json);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + id;
+    }
+}
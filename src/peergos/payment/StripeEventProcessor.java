@@ -0,0 +1,101 @@
+package peergos.payment;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Applies Stripe webhook events from a bounded queue, so the webhook can acknowledge them without waiting on the store.
+ * Stripe retries any event we don't acknowledge, so when the queue is full new events are refused rather than dropped.
+ */
+public class StripeEventProcessor {
+    private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+
+    private final PaymentState state;
+    private final Consumer<String> newCardListener;
+    private final BlockingQueue<StripeEvent> queue;
+    private Thread worker;
+
+    /**
+     *
+     * @param state
+     * @param newCardListener called with the customer id when a customer has finished adding a card
+     * @param maxQueued
+     */
+    public StripeEventProcessor(PaymentState state, Consumer<String> newCardListener, int maxQueued) {
+        this.state = state;
+        this.newCardListener = newCardListener;
+        this.queue = new ArrayBlockingQueue<>(maxQueued);
+    }
+
+    /**
+     *
+     * @return whether the event was queued
+     */
+    public boolean offer(StripeEvent event) {
+        return queue.offer(event);
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    public synchronized void start() {
+        if (worker != null)
+            throw new IllegalStateException("Stripe event processor already started!");
+        worker = new Thread(this::run, "Stripe events");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        if (worker != null)
+            worker.interrupt();
+    }
+
+    private void run() {
+        while (true) {
+            StripeEvent event;
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                LOG.info("Stripe event processor stopped");
+                return;
+            }
+            try {
+                process(event, LocalDateTime.now());
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, "Unable to process Stripe event " + event, t);
+            }
+        }
+    }
+
+    public void process(StripeEvent event, LocalDateTime now) {
+        switch (event.type) {
+            case "payment_intent.succeeded":
+                confirm(event, Optional.empty(), now);
+                break;
+            case "payment_intent.payment_failed":
+                confirm(event, Optional.of(event.error.orElse("Payment failed")), now);
+                break;
+            case "payment_intent.canceled":
+                confirm(event, Optional.of("Payment canceled"), now);
+                break;
+            case "setup_intent.succeeded":
+                event.customer.ifPresent(newCardListener);
+                break;
+            default:
+                LOG.fine("Ignoring Stripe event " + event);
+        }
+    }
+
+    private void confirm(StripeEvent event, Optional<String> error, LocalDateTime now) {
+        if (! event.paymentReference.isPresent())
+            return;
+        // payments that completed synchronously are no longer pending
+        if (state.confirmPayment(event.paymentReference.get(), error, now))
+            LOG.info("Applied Stripe event " + event);
+    }
+}
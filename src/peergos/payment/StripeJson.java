@@ -0,0 +1,281 @@
+package peergos.payment;
+
+import peergos.payment.util.*;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * Reads the fields we use from Stripe API responses and events, skipping everything else.
+ */
+public class StripeJson {
+
+    public static class PaymentIntent {
+        public final String id;
+        public final String status;
+        public final long amount;
+        public final String currency;
+        public final Optional<String> failureMessage;
+        public final Optional<String> lastErrorMessage;
+
+        public PaymentIntent(String id,
+                             String status,
+                             long amount,
+                             String currency,
+                             Optional<String> failureMessage,
+                             Optional<String> lastErrorMessage) {
+            this.id = id;
+            this.status = status;
+            this.amount = amount;
+            this.currency = currency;
+            this.failureMessage = failureMessage;
+            this.lastErrorMessage = lastErrorMessage;
+        }
+
+        public Optional<String> error() {
+            return failureMessage.isPresent() ? failureMessage : lastErrorMessage;
+        }
+    }
+
+    public static class ApiError {
+        public final Optional<String> code;
+        public final Optional<String> message;
+
+        public ApiError(Optional<String> code, Optional<String> message) {
+            this.code = code;
+            this.message = message;
+        }
+    }
+
+    public static CustomerResult parseCustomer(String json) {
+        JsonReader reader = new JsonReader(json);
+        String id = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("id"))
+                id = reader.nextString();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return new CustomerResult(id);
+    }
+
+    public static IntentResult parseSetupIntent(String json, LocalDateTime now) {
+        JsonReader reader = new JsonReader(json);
+        String id = null, clientSecret = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id": id = reader.nextString(); break;
+                case "client_secret": clientSecret = reader.nextString(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new IntentResult(id, clientSecret, now);
+    }
+
+    /**
+     * @param json a list of setup intents, newest first
+     * @return the newest which still needs a card
+     */
+    public static Optional<IntentResult> parseUnconfirmedSetupIntent(String json, LocalDateTime now) {
+        JsonReader reader = new JsonReader(json);
+        Optional<IntentResult> res = Optional.empty();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (! reader.nextName().equals("data")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String id = null, clientSecret = null, status = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "id": id = reader.nextString(); break;
+                        case "client_secret": clientSecret = reader.nextString(); break;
+                        case "status": status = reader.nextString(); break;
+                        default: reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (! res.isPresent() && "requires_payment_method".equals(status))
+                    res = Optional.of(new IntentResult(id, clientSecret, now));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return res;
+    }
+
+    public static List<PaymentMethod> parsePaymentMethods(String json) {
+        JsonReader reader = new JsonReader(json);
+        List<PaymentMethod> res = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (! reader.nextName().equals("data")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext())
+                res.add(parsePaymentMethod(reader));
+            reader.endArray();
+        }
+        reader.endObject();
+        return res;
+    }
+
+    private static PaymentMethod parsePaymentMethod(JsonReader reader) {
+        String id = null, email = null;
+        long created = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id": id = reader.nextString(); break;
+                case "created": created = reader.nextLong(); break;
+                case "billing_details": email = readField(reader, "email"); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new PaymentMethod(id, email, created);
+    }
+
+    public static PaymentIntent parsePaymentIntent(String json) {
+        return parsePaymentIntent(new JsonReader(json));
+    }
+
+    /**
+     * @return the payment intents in a list or search result
+     */
+    public static List<PaymentIntent> parsePaymentIntents(String json) {
+        JsonReader reader = new JsonReader(json);
+        List<PaymentIntent> res = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (! reader.nextName().equals("data")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext())
+                res.add(parsePaymentIntent(reader));
+            reader.endArray();
+        }
+        reader.endObject();
+        return res;
+    }
+
+    private static PaymentIntent parsePaymentIntent(JsonReader reader) {
+        String id = null, status = null, currency = null, failureMessage = null, lastError = null;
+        long amount = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id": id = reader.nextString(); break;
+                case "status": status = reader.nextString(); break;
+                case "amount": amount = reader.nextLong(); break;
+                case "currency": currency = reader.nextString(); break;
+                case "failure_message": failureMessage = reader.nextString(); break;
+                case "last_payment_error": lastError = readField(reader, "message"); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new PaymentIntent(id, status, amount, currency, Optional.ofNullable(failureMessage), Optional.ofNullable(lastError));
+    }
+
+    /**
+     * @return the error in a Stripe error response, or empty if the body isn't one
+     */
+    public static Optional<ApiError> parseError(String json) {
+        try {
+            JsonReader reader = new JsonReader(json);
+            Optional<ApiError> res = Optional.empty();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("error") && reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                    String code = null, message = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "code": code = reader.nextString(); break;
+                            case "message": message = reader.nextString(); break;
+                            default: reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    res = Optional.of(new ApiError(Optional.ofNullable(code), Optional.ofNullable(message)));
+                } else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            return res;
+        } catch (IllegalStateException e) {
+            return Optional.empty();
+        }
+    }
+
+    public static StripeEvent parseEvent(String json) {
+        JsonReader reader = new JsonReader(json);
+        String id = null, type = null, reference = null, customer = null, error = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id": id = reader.nextString(); break;
+                case "type": type = reader.nextString(); break;
+                case "data": {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (! reader.nextName().equals("object") || reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                            reader.skipValue();
+                            continue;
+                        }
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "customer": customer = reader.nextString(); break;
+                                case "metadata": reference = readField(reader, StripeProcessor.PAYMENT_REFERENCE); break;
+                                case "last_payment_error": error = readField(reader, "message"); break;
+                                default: reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endObject();
+                    break;
+                }
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (id == null || type == null)
+            throw new IllegalStateException("Invalid Stripe event");
+        return new StripeEvent(id, type, Optional.ofNullable(reference), Optional.ofNullable(customer),
+                Optional.ofNullable(error));
+    }
+
+    /**
+     *  Read a single string field from an object which may be null
+     */
+    private static String readField(JsonReader reader, String field) {
+        if (reader.peek() == JsonReader.Token.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        String res = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(field) && reader.peek() != JsonReader.Token.BEGIN_OBJECT)
+                res = reader.nextString();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return res;
+    }
+}
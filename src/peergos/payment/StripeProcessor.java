@@ -2,38 +2,150 @@ package peergos.payment;
 
 import peergos.payment.util.*;
 
-import java.io.*;
 import java.net.*;
+import java.net.http.*;
+import java.nio.charset.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
-public class StripeProcessor implements Bank {
+public class StripeProcessor implements Bank, AsyncBank {
     private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+    public static final String STRIPE_API = "https://api.stripe.com";
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    // The metadata key of our reference for a payment intent, which comes back in webhook events
+    public static final String PAYMENT_REFERENCE = "payment_ref";
+    // Longer than a billing period, so a monthly renewal can reuse the card from the previous one
+    public static final Duration DEFAULT_CARD_CACHE_TTL = Duration.ofDays(40);
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    private static final Duration BASE_RETRY_DELAY = Duration.ofMillis(500);
+    public static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(30);
 
-    private final String stripeSecretToken;
+    private final String baseUrl;
+    private final String authHeader;
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final Duration cardCacheTtl;
+    private final Optional<TokenBucket> limiter;
+    private final int maxRetries;
+    private final AtomicLong throttledCalls = new AtomicLong(0);
+    private final AtomicLong retriedCalls = new AtomicLong(0);
+    // customer id => the card we last charged and the email we last set for them
+    private final Map<String, CachedCard> cards = new ConcurrentHashMap<>();
 
     public StripeProcessor(String stripeSecretToken) {
-        this.stripeSecretToken = stripeSecretToken;
+        this(stripeSecretToken, STRIPE_API, DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, DEFAULT_CARD_CACHE_TTL,
+                Optional.empty(), DEFAULT_MAX_RETRIES);
+    }
+
+    public StripeProcessor(String stripeSecretToken,
+                           String baseUrl,
+                           Duration connectTimeout,
+                           Duration requestTimeout,
+                           Duration cardCacheTtl,
+                           Optional<TokenBucket> limiter,
+                           int maxRetries) {
+        this(stripeSecretToken, baseUrl, buildClient(connectTimeout), requestTimeout, cardCacheTtl, limiter, maxRetries);
+    }
+
+    /**
+     *
+     * @param stripeSecretToken
+     * @param baseUrl The Stripe API endpoint, without a trailing slash, which can point to a local stand in
+     * @param client A shared client, so connections are reused across calls
+     * @param requestTimeout
+     * @param cardCacheTtl How long to reuse a customer's card, and the email we set from it, without asking Stripe
+     * @param limiter Limits the rate of all requests to Stripe
+     * @param maxRetries How many times to retry a request that was rate limited or hit a server error
+     */
+    public StripeProcessor(String stripeSecretToken,
+                           String baseUrl,
+                           HttpClient client,
+                           Duration requestTimeout,
+                           Duration cardCacheTtl,
+                           Optional<TokenBucket> limiter,
+                           int maxRetries) {
+        this.baseUrl = baseUrl;
+        this.authHeader = "Basic " + Base64.getEncoder().encodeToString((stripeSecretToken + ":").getBytes());
+        this.client = client;
+        this.requestTimeout = requestTimeout;
+        this.cardCacheTtl = cardCacheTtl;
+        this.limiter = limiter;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the number of requests delayed by our rate limiter
+     */
+    public long getThrottledCalls() {
+        return throttledCalls.get();
+    }
+
+    /**
+     * @return the number of requests retried after Stripe rate limited them or failed
+     */
+    public long getRetriedCalls() {
+        return retriedCalls.get();
+    }
+
+    private static class CachedCard {
+        public final PaymentMethod card;
+        public final Optional<String> emailSet;
+        public final LocalDateTime expiry;
+
+        public CachedCard(PaymentMethod card, Optional<String> emailSet, LocalDateTime expiry) {
+            this.card = card;
+            this.emailSet = emailSet;
+            this.expiry = expiry;
+        }
+
+        public boolean needsEmailUpdate() {
+            return ! emailSet.equals(Optional.ofNullable(card.email));
+        }
+    }
+
+    private Optional<CachedCard> getCachedCard(String customerId) {
+        CachedCard cached = cards.get(customerId);
+        if (cached == null)
+            return Optional.empty();
+        if (cached.expiry.isBefore(LocalDateTime.now())) {
+            cards.remove(customerId, cached);
+            return Optional.empty();
+        }
+        return Optional.of(cached);
+    }
+
+    /**
+     *  Forget the card we have for a customer, so the next payment looks up their current payment methods. Call this
+     *  when a setup intent is handed to the customer, as they are about to add a new card.
+     */
+    public void invalidateCard(String customerId) {
+        cards.remove(customerId);
+    }
+
+    public int cachedCards() {
+        return cards.size();
+    }
+
+    public static HttpClient buildClient(Duration connectTimeout) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .build();
     }
 
     @Override
     public IntentResult setupIntent(CustomerResult cus) {
-        Map<String, Object> res = (Map) JSONParser.parse(setupIntent(stripeSecretToken, cus));
-        // TODO parse more fields from res
-        String id = (String) res.get("id");
-        String clientSecret = (String) res.get("client_secret");
-        return new IntentResult(id, clientSecret, LocalDateTime.now());
+        return AsyncBank.await(setupIntentAsync(cus));
     }
 
     @Override
     public CustomerResult createCustomer(String username) {
-        String rawJson = createCustomer(stripeSecretToken, username);
-        Map<String, Object> res = (Map) JSONParser.parse(rawJson);
-        // TODO parse more fields from res
-        String id = (String) res.get("id");
-        return new CustomerResult(id);
+        return AsyncBank.await(createCustomerAsync(username));
     }
 
     @Override
@@ -41,95 +153,196 @@ public class StripeProcessor implements Bank {
                                      Natural cents,
                                      String currency,
                                      LocalDateTime now,
-                                     Natural forQuota) {
-        List<PaymentMethod> paymentMethods = listPaymentMethods(cus, stripeSecretToken);
-        if (paymentMethods.isEmpty())
-            throw new IllegalStateException("No card registered for user!");
-        Collections.sort(paymentMethods, (a, b) -> (int) (b.created - a.created));
-        // use the payment method most recently created
-        PaymentMethod card = paymentMethods.get(0);
-        try {
-            // update customer email
-            updateCustomer(stripeSecretToken, cus.id, card.email);
-
-            // take payment
-            Map<String, Object> res = (Map) JSONParser.parse(takePayment(cents, currency, cus, card, stripeSecretToken, forQuota));
-            boolean success = "succeeded".equals(res.get("status"));
-            Optional<String> errMessage = Optional.ofNullable(res.get("failure_message")).map(x -> (String) x);
-            // TODO parse more fields from res
-            return new PaymentResult(cents, currency, now, errMessage);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new PaymentResult(cents, currency, now, Optional.of(e.getMessage()));
-        }
+                                     Natural forQuota,
+                                     String reference) {
+        return AsyncBank.await(takePaymentAsync(cus, cents, currency, now, forQuota, reference));
     }
 
-    public static String createCustomer(String stripeSecretKey, String username) {
-        try {
-            Map<String, String> params = new HashMap<>();
-            params.put("metadata[username]", username);
-            String res = post("https://api.stripe.com/v1/customers", stripeSecretKey, params);
-            System.out.println("Created customer: " + res);
-            return res;
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+    @Override
+    public Optional<PaymentResult> findPayment(String reference) {
+        return AsyncBank.await(findPaymentAsync(reference));
     }
 
-    public static String updateCustomer(String stripeSecretKey, String customerId, String email) {
-        try {
-            Map<String, String> params = new HashMap<>();
-            params.put("email", email);
-            String res = post("https://api.stripe.com/v1/customers/" + customerId, stripeSecretKey, params);
-            System.out.println("Created customer: " + res);
-            return res;
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+    @Override
+    public Optional<IntentResult> findSetupIntent(CustomerResult cus) {
+        return AsyncBank.await(findSetupIntentAsync(cus));
     }
 
-    public static String setupIntent(String stripeSecretKey, CustomerResult cus) {
-        try {
-            Map<String, String> params = new HashMap<>();
-            params.put("customer", cus.id);
-            String res = post("https://api.stripe.com/v1/setup_intents", stripeSecretKey, params);
-            System.out.println("Created intent: " + res);
-            return res;
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+    @Override
+    public CompletableFuture<IntentResult> setupIntentAsync(CustomerResult cus) {
+        return setupIntentJson(cus).thenApply(json -> StripeJson.parseSetupIntent(json, LocalDateTime.now()));
+    }
+
+    @Override
+    public CompletableFuture<CustomerResult> createCustomerAsync(String username) {
+        return createCustomerJson(username).thenApply(StripeJson::parseCustomer);
     }
 
-    public static List<PaymentMethod> listPaymentMethods(CustomerResult cus, String stripeSecretKey) {
-        try {
-            Map<String, String> params = new HashMap<>();
-            params.put("customer", cus.id);
-            params.put("type", "card");
-            String res = get("https://api.stripe.com/v1/payment_methods", stripeSecretKey, params);
+    @Override
+    public CompletableFuture<PaymentResult> takePaymentAsync(CustomerResult cus,
+                                                             Natural cents,
+                                                             String currency,
+                                                             LocalDateTime now,
+                                                             Natural forQuota,
+                                                             String reference) {
+        return chooseCard(cus).thenCompose(cached -> {
+            PaymentMethod card = cached.card;
+            CompletableFuture<String> emailUpdated = cached.needsEmailUpdate() ?
+                    updateCustomer(cus.id, card.email).thenApply(res -> {
+                        // unless it has been invalidated in the meantime
+                        cards.replace(cus.id, cached, new CachedCard(card, Optional.ofNullable(card.email), cached.expiry));
+                        return res;
+                    }) :
+                    CompletableFuture.completedFuture("");
+            return emailUpdated
+                    .thenCompose(x -> takePaymentJson(cents, currency, cus, card, forQuota, reference)
+                            .handle((json, t) -> {
+                                if (t == null)
+                                    return parsePaymentResult(json, cus, cents, currency, now);
+                                Throwable e = unwrap(t);
+                                // the charge may still go through, in which case we'll hear about it in a webhook
+                                // event, or find it when we reconcile pending payments
+                                if (e instanceof HttpTimeoutException) {
+                                    LOG.warning("Timed out taking payment " + reference + ", waiting for confirmation");
+                                    return PaymentResult.pending(cents, currency, now);
+                                }
+                                throw new CompletionException(e);
+                            }))
+                    .exceptionally(t -> {
+                        Throwable e = unwrap(t);
+                        // let callers tell an outage from a rejected payment
+                        if (BankUnavailableException.isUnavailable(e))
+                            throw new CompletionException(e);
+                        e.printStackTrace();
+                        invalidateCard(cus.id);
+                        return new PaymentResult(cents, currency, now, Optional.of(String.valueOf(e.getMessage())));
+                    });
+        });
+    }
+
+    /**
+     *  Search for the payment intent with our reference in its metadata. Stripe's search index can lag by up to a
+     *  minute, or longer during an outage, so a recent charge may not be found yet.
+     */
+    @Override
+    public CompletableFuture<Optional<PaymentResult>> findPaymentAsync(String reference) {
+        Map<String, String> params = new HashMap<>();
+        params.put("query", "metadata['" + PAYMENT_REFERENCE + "']:'" + reference + "'");
+        return get("/v1/payment_intents/search", params).thenApply(res -> {
+            List<StripeJson.PaymentIntent> intents = StripeJson.parsePaymentIntents(res);
+            if (intents.isEmpty())
+                return Optional.empty();
+            StripeJson.PaymentIntent intent = intents.get(0);
+            return Optional.of(toPaymentResult(intent, Natural.of(intent.amount), intent.currency, LocalDateTime.now()));
+        });
+    }
+
+    /**
+     *  The most recent of the customer's setup intents that still needs a card, so abandoned card forms don't leave a
+     *  new intent each time
+     */
+    @Override
+    public CompletableFuture<Optional<IntentResult>> findSetupIntentAsync(CustomerResult cus) {
+        Map<String, String> params = new HashMap<>();
+        params.put("customer", cus.id);
+        return get("/v1/setup_intents", params)
+                .thenApply(res -> StripeJson.parseUnconfirmedSetupIntent(res, LocalDateTime.now()));
+    }
+
+    private PaymentResult parsePaymentResult(String json,
+                                             CustomerResult cus,
+                                             Natural cents,
+                                             String currency,
+                                             LocalDateTime now) {
+        PaymentResult res = toPaymentResult(StripeJson.parsePaymentIntent(json), cents, currency, now);
+        if (res.failureError.isPresent())
+            invalidateCard(cus.id);
+        return res;
+    }
+
+    private static PaymentResult toPaymentResult(StripeJson.PaymentIntent intent,
+                                                 Natural cents,
+                                                 String currency,
+                                                 LocalDateTime now) {
+        if ("succeeded".equals(intent.status))
+            return new PaymentResult(cents, currency, now, Optional.empty());
+        if ("processing".equals(intent.status))
+            return PaymentResult.pending(cents, currency, now);
+        String errMessage = intent.error().orElse("Payment " + intent.status);
+        return new PaymentResult(cents, currency, now, Optional.of(errMessage));
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /**
+     *  Use the payment method most recently created, from the cache if we've looked it up recently
+     */
+    private CompletableFuture<CachedCard> chooseCard(CustomerResult cus) {
+        Optional<CachedCard> cached = getCachedCard(cus.id);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached.get());
+        return listPaymentMethodsAsync(cus).thenApply(paymentMethods -> {
+            if (paymentMethods.isEmpty())
+                throw new IllegalStateException("No card registered for user!");
+            Collections.sort(paymentMethods, (a, b) -> Long.compare(b.created, a.created));
+            CachedCard card = new CachedCard(paymentMethods.get(0), Optional.empty(), LocalDateTime.now().plus(cardCacheTtl));
+            cards.put(cus.id, card);
+            return card;
+        });
+    }
+
+    private CompletableFuture<String> createCustomerJson(String username) {
+        Map<String, String> params = new HashMap<>();
+        params.put("metadata[username]", username);
+        return post("/v1/customers", params)
+                .thenApply(res -> {
+                    System.out.println("Created customer: " + res);
+                    return res;
+                });
+    }
+
+    private CompletableFuture<String> updateCustomer(String customerId, String email) {
+        Map<String, String> params = new HashMap<>();
+        params.put("email", email);
+        return post("/v1/customers/" + customerId, params)
+                .thenApply(res -> {
+                    System.out.println("Created customer: " + res);
+                    return res;
+                });
+    }
+
+    private CompletableFuture<String> setupIntentJson(CustomerResult cus) {
+        Map<String, String> params = new HashMap<>();
+        params.put("customer", cus.id);
+        return post("/v1/setup_intents", params)
+                .thenApply(res -> {
+                    System.out.println("Created intent: " + res);
+                    return res;
+                });
+    }
+
+    public List<PaymentMethod> listPaymentMethods(CustomerResult cus) {
+        return AsyncBank.await(listPaymentMethodsAsync(cus));
+    }
+
+    public CompletableFuture<List<PaymentMethod>> listPaymentMethodsAsync(CustomerResult cus) {
+        Map<String, String> params = new HashMap<>();
+        params.put("customer", cus.id);
+        params.put("type", "card");
+        return get("/v1/payment_methods", params).thenApply(res -> {
             System.out.println("Retrieved payment methods: " + res);
-            Map<String, Object> json = (Map) JSONParser.parse(res);
-            List<Object> methods = (List)json.get("data");
-            return methods.stream()
-                    .map(j -> new PaymentMethod(
-                            (String)((Map)j).get("id"),
-                            (String)((Map)((Map)j).get("billing_details")).get("email"),
-                            (Integer)((Map)j).get("created")))
-                    .collect(Collectors.toList());
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+            return StripeJson.parsePaymentMethods(res);
+        });
     }
 
-    public static String takePayment(Natural cents,
-                                     String currency,
-                                     CustomerResult cus,
-                                     PaymentMethod method,
-                                     String stripeSecretKey,
-                                     Natural forQuota) throws IOException {
+    private CompletableFuture<String> takePaymentJson(Natural cents,
+                                                      String currency,
+                                                      CustomerResult cus,
+                                                      PaymentMethod method,
+                                                      Natural forQuota,
+                                                      String reference) {
         Map<String, String> params = new HashMap<>();
         params.put("amount", Long.toString(cents.val));
         params.put("currency", currency);
@@ -138,81 +351,127 @@ public class StripeProcessor implements Bank {
         params.put("off_session", "true");
         params.put("confirm", "true");
         params.put("metadata[desired_quota]", Long.toString(forQuota.val));
-        String res = post("https://api.stripe.com/v1/payment_intents", stripeSecretKey, params);
-        System.out.println("Took payment: " + res);
-        return res;
+        params.put("metadata[" + PAYMENT_REFERENCE + "]", reference);
+        // reuse our reference, so retrying can never charge twice
+        return post("/v1/payment_intents", params, reference)
+                .thenApply(res -> {
+                    System.out.println("Took payment: " + res);
+                    return res;
+                });
+    }
+
+    private static String formEncode(Map<String, String> parameters) {
+        return parameters.entrySet().stream()
+                .map(e -> URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8) + "=" +
+                        URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8))
+                .collect(Collectors.joining("&"));
+    }
+
+    private HttpRequest.Builder request(String pathAndQuery) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + pathAndQuery))
+                .timeout(requestTimeout)
+                .header("Authorization", authHeader);
+    }
+
+    private CompletableFuture<String> post(String path, Map<String, String> parameters) {
+        return post(path, parameters, UUID.randomUUID().toString());
+    }
+
+    /**
+     *
+     * @param idempotencyKey Stripe returns the original result for any retry with the same key
+     */
+    private CompletableFuture<String> post(String path, Map<String, String> parameters, String idempotencyKey) {
+        return send(request(path)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Idempotency-Key", idempotencyKey)
+                .POST(HttpRequest.BodyPublishers.ofString(formEncode(parameters)))
+                .build());
+    }
+
+    private CompletableFuture<String> get(String path, Map<String, String> parameters) {
+        return send(request(path + "?" + formEncode(parameters))
+                .GET()
+                .build());
+    }
+
+    /**
+     *  Send a request without blocking the calling thread, retrying it if we are rate limited or Stripe has an error
+     */
+    private CompletableFuture<String> send(HttpRequest req) {
+        return send(req, 0);
     }
 
-    public static String post(String url, String stripeSecretKey, Map<String, String> parameters) throws IOException {
-        String body = parameters.entrySet().stream()
-                .map(e -> e.getKey() + "=" + e.getValue())
-                .reduce((a, b) -> a + "&" + b)
-                .orElse("");
-        return new String(post(url, stripeSecretKey, body));
-    }
-
-    public static byte[] post(String url, String stripeSecretKey, String payload) throws IOException {
-        HttpURLConnection conn = null;
-        try
-        {
-            conn = (HttpURLConnection) new URL(url).openConnection();
-            String auth = Base64.getEncoder().encodeToString((stripeSecretKey + ":").getBytes());
-            conn.setRequestProperty("Authorization", "Basic " + auth);
-            conn.setDoInput(true);
-            conn.setDoOutput(true);
-            DataOutputStream dout = new DataOutputStream(conn.getOutputStream());
-
-            dout.write(payload.getBytes());
-            dout.flush();
-
-            DataInputStream din = new DataInputStream(conn.getInputStream());
-            return IOUtil.readFully(din, 10*1024);
-        } catch (IOException e){
-            DataInputStream din = new DataInputStream(conn.getErrorStream());
-            String body = new String(IOUtil.readFully(din, 20*1024));
-            if (conn != null)
-                conn.disconnect();
-            Map resp = (Map) JSONParser.parse(body);
-            Map err = (Map) resp.get("error");
-            String code = (String) err.get("code");
-            String message = (String) err.get("message");
-            LOG.log(Level.SEVERE, code + ": " + message);
-            throw new IllegalStateException(message, e);
-        } finally {
-            if (conn != null)
-                conn.disconnect();
+    private CompletableFuture<String> send(HttpRequest req, int attempt) {
+        long waitNanos = limiter.map(TokenBucket::reserve).orElse(0L);
+        if (waitNanos > 0)
+            throttledCalls.incrementAndGet();
+        return after(waitNanos)
+                .thenCompose(x -> client.sendAsync(req, HttpResponse.BodyHandlers.ofString()))
+                .thenCompose(resp -> {
+                    if (resp.statusCode() >= 200 && resp.statusCode() < 300)
+                        return CompletableFuture.completedFuture(resp.body());
+                    if (attempt < maxRetries && isRetryable(resp)) {
+                        retriedCalls.incrementAndGet();
+                        long delay = retryDelayNanos(resp.headers().firstValue("Retry-After"), attempt);
+                        LOG.info("Retrying Stripe request after status " + resp.statusCode() + " in " +
+                                TimeUnit.NANOSECONDS.toMillis(delay) + " mS");
+                        return after(delay).thenCompose(y -> send(req, attempt + 1));
+                    }
+                    throw parseError(resp);
+                });
+    }
+
+    private static CompletableFuture<Void> after(long nanos) {
+        if (nanos <= 0)
+            return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS));
+    }
+
+    private static boolean isRetryable(HttpResponse<String> resp) {
+        Optional<String> shouldRetry = resp.headers().firstValue("Stripe-Should-Retry");
+        if (shouldRetry.isPresent())
+            return Boolean.parseBoolean(shouldRetry.get());
+        return resp.statusCode() == 429 || resp.statusCode() >= 500;
+    }
+
+    /**
+     *  Use Retry-After if Stripe sent it, otherwise an exponential backoff with jitter, so retries are spread out. Never
+     *  more than MAX_RETRY_DELAY.
+     *
+     * @param retryAfter the Retry-After header, in seconds
+     * @param attempt the number of retries so far
+     * @return how long to wait in nanoseconds before retrying
+     */
+    public static long retryDelayNanos(Optional<String> retryAfter, int attempt) {
+        if (retryAfter.isPresent()) {
+            try {
+                long seconds = Long.parseLong(retryAfter.get().trim());
+                return Math.min(MAX_RETRY_DELAY.toNanos(), TimeUnit.SECONDS.toNanos(Math.max(0, seconds)));
+            } catch (NumberFormatException e) {
+                // fall back to our own backoff
+            }
         }
+        // the cap is reached long before the shift could overflow
+        long max = Math.min(MAX_RETRY_DELAY.toNanos(), BASE_RETRY_DELAY.toNanos() << Math.min(attempt, 32));
+        return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+    }
+
+    private static RuntimeException parseError(HttpResponse<String> response) {
+        IllegalStateException err = parseErrorMessage(response);
+        if (response.statusCode() == 429 || response.statusCode() >= 500)
+            return new BankUnavailableException(err.getMessage(), err);
+        return err;
     }
 
-    public static String get(String url, String stripeSecretKey, Map<String, String> parameters) throws IOException {
-        HttpURLConnection conn = null;
-        try
-        {
-            String query = parameters.entrySet().stream()
-                .map(e -> e.getKey() + "=" + e.getValue())
-                .reduce((a, b) -> a + "&" + b)
-                .orElse("");
-            conn = (HttpURLConnection) new URL(url + "?" + query).openConnection();
-            String auth = Base64.getEncoder().encodeToString((stripeSecretKey + ":").getBytes());
-            conn.setRequestProperty("Authorization", "Basic " + auth);
-            conn.setDoInput(true);
-
-            DataInputStream din = new DataInputStream(conn.getInputStream());
-            return new String(IOUtil.readFully(din, 10*1024));
-        } catch (IOException e){
-            DataInputStream din = new DataInputStream(conn.getErrorStream());
-            String body = new String(IOUtil.readFully(din, 4096));
-            if (conn != null)
-                conn.disconnect();
-            Map resp = (Map) JSONParser.parse(body);
-            Map err = (Map) resp.get("error");
-            String code = (String) err.get("code");
-            String message = (String) err.get("message");
-            LOG.log(Level.SEVERE, code + ": " + message);
-            throw new IllegalStateException(message, e);
-        } finally {
-            if (conn != null)
-                conn.disconnect();
+    private static IllegalStateException parseErrorMessage(HttpResponse<String> response) {
+        Optional<StripeJson.ApiError> err = StripeJson.parseError(response.body());
+        if (err.isEmpty()) {
+            LOG.log(Level.SEVERE, "Stripe returned status " + response.statusCode());
+            return new IllegalStateException("Stripe returned status " + response.statusCode());
         }
+        String message = err.get().message.orElse("Stripe returned status " + response.statusCode());
+        LOG.log(Level.SEVERE, err.get().code.orElse("error") + ": " + message);
+        return new IllegalStateException(message);
     }
 }
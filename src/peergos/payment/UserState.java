@@ -5,77 +5,70 @@ import peergos.payment.util.*;
 import java.time.*;
 import java.util.*;
 
+/**
+ * An immutable snapshot of a single user's row in the payment store
+ */
 public class UserState {
 
-    private Natural freeBytes;
-    private Natural currentBalanceCents;
-    private Natural currentQuotaBytes;
-    private Natural desiredQuotaBytes;
-    private LocalDateTime expiry;
-    private CustomerResult customer;
+    private final Natural freeBytes;
+    private final Natural currentBalanceCents;
+    private final Natural currentQuotaBytes;
+    private final Natural desiredQuotaBytes;
+    private final Natural currentPriceCents;
+    private final LocalDateTime expiry;
+    private final CustomerResult customer;
+    private final Optional<String> error;
 
     public UserState(Natural freeBytes,
                      Natural currentBalanceCents,
                      Natural currentQuotaBytes,
                      Natural desiredQuotaBytes,
+                     Natural currentPriceCents,
                      LocalDateTime expiry,
-                     CustomerResult customer) {
+                     CustomerResult customer,
+                     Optional<String> error) {
         this.freeBytes = freeBytes;
         this.currentBalanceCents = currentBalanceCents;
         this.currentQuotaBytes = currentQuotaBytes;
         this.desiredQuotaBytes = desiredQuotaBytes;
+        this.currentPriceCents = currentPriceCents;
         this.expiry = expiry;
         this.customer = customer;
-    }
-
-    public void setCustomer(CustomerResult customer) {
-        this.customer = customer;
+        this.error = error;
     }
 
     public CustomerResult getCustomer() {
         return customer;
     }
 
-    public synchronized void setDesiredQuota(Natural bytes) {
-        this.desiredQuotaBytes = bytes;
-    }
-
-    public synchronized Natural getDesiredQuota() {
+    public Natural getDesiredQuota() {
         return desiredQuotaBytes;
     }
 
-    public synchronized void setCurrentBalance(Natural balance) {
-        this.currentBalanceCents = balance;
-    }
-
-    public synchronized Natural getCurrentBalance() {
+    public Natural getCurrentBalance() {
         return currentBalanceCents;
     }
 
-    public synchronized void setQuota(Natural quota) {
-        this.currentQuotaBytes = quota;
-    }
-
-    public synchronized Natural getQuota() {
+    public Natural getQuota() {
         return currentQuotaBytes;
     }
 
-    public synchronized void setFreeQuota(Natural freeQuota) {
-        this.freeBytes = freeQuota;
-    }
-
-    public synchronized Natural getFreeQuota() {
+    public Natural getFreeQuota() {
         return freeBytes;
     }
 
-    public synchronized void setQuotaExpiry(LocalDateTime expiry) {
-        this.expiry = expiry;
+    public Natural getCurrentPrice() {
+        return currentPriceCents;
     }
 
     public LocalDateTime getQuotaExpiry() {
         return expiry;
     }
 
+    public Optional<String> getError() {
+        return error;
+    }
+
     @Override
     public String toString() {
         return "UserState{" +
@@ -83,7 +76,9 @@ public class UserState {
                 ",\n\t currentBalanceCents=" + currentBalanceCents +
                 ",\n\t currentQuotaMiB=" + currentQuotaBytes.val/1024/1024 +
                 ",\n\t desiredQuotaMiB=" + desiredQuotaBytes.val/1024/1024 +
+                ",\n\t currentPriceCents=" + currentPriceCents +
                 ",\n\t expiry=" + expiry +
+                error.map(e -> ",\n\t error=" + e).orElse("") +
                 "\n}";
     }
 }
@@ -0,0 +1,119 @@
+package peergos.payment.http;
+
+import com.sun.net.httpserver.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of requests an HttpServer has queued or running, including those a handler replies to after it
+ * returns. Requests over the limit are run on a few separate threads, where the filter replies 503 straight away, rather
+ * than waiting in the queue. If even those are backed up the request is refused, and the server closes its connection.
+ */
+public class AdmissionExecutor implements Executor {
+    private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+    private static final int REJECTION_THREADS = 2;
+    private static final int MAX_QUEUED_REJECTIONS = 1000;
+    private static final ThreadLocal<Boolean> REJECTED = ThreadLocal.withInitial(() -> false);
+    // releases the permit of the request running on this thread, unless a handler has taken it to reply later
+    private static final ThreadLocal<Runnable> PERMIT = new ThreadLocal<>();
+
+    private final Executor target;
+    private final Semaphore pending;
+    private final ThreadPoolExecutor rejections;
+    private final AtomicLong rejectedRequests = new AtomicLong(0);
+
+    public AdmissionExecutor(Executor target, int maxPending) {
+        this.target = target;
+        this.pending = new Semaphore(maxPending);
+        this.rejections = new ThreadPoolExecutor(REJECTION_THREADS, REJECTION_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_REJECTIONS), r -> {
+            Thread t = new Thread(r, "Rejected request");
+            t.setDaemon(true);
+            return t;
+        });
+        rejections.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     *  Call from a handler which replies after it returns, so its request still counts against the limit until then
+     *
+     * @return to run once the exchange is closed
+     */
+    public static Runnable replyLater() {
+        Runnable release = PERMIT.get();
+        PERMIT.remove();
+        return release == null ? () -> {} : release;
+    }
+
+    @Override
+    public void execute(Runnable request) {
+        if (pending.tryAcquire()) {
+            AtomicBoolean held = new AtomicBoolean(true);
+            Runnable release = () -> {
+                if (held.compareAndSet(true, false))
+                    pending.release();
+            };
+            try {
+                target.execute(() -> {
+                    PERMIT.set(release);
+                    try {
+                        request.run();
+                    } finally {
+                        replyLater().run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                release.run();
+                throw e;
+            }
+            return;
+        }
+        rejectedRequests.incrementAndGet();
+        rejections.execute(() -> {
+            REJECTED.set(true);
+            try {
+                request.run();
+            } finally {
+                REJECTED.set(false);
+            }
+        });
+    }
+
+    public int availablePermits() {
+        return pending.availablePermits();
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * @return a filter to add to each context on the server, which replies to requests over the limit
+     */
+    public Filter filter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (! REJECTED.get()) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                LOG.warning("Server overloaded, rejecting " + exchange.getRequestURI().getPath());
+                try {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    exchange.sendResponseHeaders(503, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Reply 503 to requests over the admission limit";
+            }
+        };
+    }
+}
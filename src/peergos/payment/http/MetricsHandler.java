@@ -0,0 +1,41 @@
+package peergos.payment.http;
+
+import com.sun.net.httpserver.*;
+import peergos.payment.util.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.logging.*;
+
+/**
+ * Serves the metrics in the Prometheus text format
+ */
+public class MetricsHandler implements HttpHandler {
+    private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+    public static final String URL = "/metrics";
+
+    private final MetricsRegistry metrics;
+
+    public MetricsHandler(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (! exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error writing metrics", e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+}
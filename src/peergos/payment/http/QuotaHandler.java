@@ -14,50 +14,91 @@ import peergos.shared.util.*;
 import java.io.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
 public class QuotaHandler  implements HttpHandler {
     private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_USERNAME_CACHE_SIZE = 10_000;
+    // usernames almost never change owner, so this only bounds how long a change takes to be seen
+    public static final Duration DEFAULT_USERNAME_CACHE_TTL = Duration.ofHours(1);
+    // methods we keep separate metrics for, so unknown methods can't create unbounded series
+    private static final Set<String> METHODS = Set.of("signups", "usernames", "allowed", "token-add", "token-remove",
+            "quota-by-name", "quotas-by-name", "changes-since", "payment-properties", "quota", "request");
+    private static final long MAX_CHANGES_PER_REQUEST = 100_000;
+    private static final int MAX_BATCH_REQUEST_SIZE = 4 * 1024 * 1024;
 
     private final PaymentState state;
     private final ContentAddressedStorage dht;
-    private final CoreNode core;
+    private final TimeLimitedAuth auth;
+    private final TtlCache<PublicKeyHash, String> usernames;
     private final String ourUrl;
+    private final MetricsRegistry metrics;
 
     public QuotaHandler(PaymentState state, ContentAddressedStorage dht, CoreNode core, String ourUrl) {
+        this(state, dht, core, ourUrl, DEFAULT_USERNAME_CACHE_SIZE, DEFAULT_USERNAME_CACHE_TTL, new MetricsRegistry());
+    }
+
+    public QuotaHandler(PaymentState state,
+                        ContentAddressedStorage dht,
+                        CoreNode core,
+                        String ourUrl,
+                        int usernameCacheSize,
+                        Duration usernameCacheTtl,
+                        MetricsRegistry metrics) {
         this.state = state;
         this.dht = dht;
-        this.core = core;
+        this.auth = new TimeLimitedAuth(dht);
+        this.usernames = new TtlCache<>(usernameCacheSize, usernameCacheTtl, owner -> core.getUsername(owner));
         this.ourUrl = ourUrl;
+        this.metrics = metrics;
+    }
+
+    public TtlCache<PublicKeyHash, String> getUsernameCache() {
+        return usernames;
+    }
+
+    public TimeLimitedAuth getAuth() {
+        return auth;
     }
 
     @Override
-    public void handle(HttpExchange exchange) {
-        long t1 = System.currentTimeMillis();
+    public void handle(HttpExchange exchange) throws IOException {
+        long t1 = System.nanoTime();
         String path = exchange.getRequestURI().getPath();
         if (path.startsWith("/"))
             path = path.substring(1);
         String[] subComponents = path.substring(HttpQuotaAdmin.QUOTA_URL.length()).split("/");
         String method = subComponents[0];
+        String metricLabel = METHODS.contains(method) ? method : "unknown";
+        metrics.gauge("quota_requests_in_flight", "Quota requests in flight", "method", metricLabel).incrementAndGet();
 
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
         Function<String, String> last = key -> params.get(key).get(params.get(key).size() - 1);
 
 
         Cborable result;
+        boolean replyLater = false;
+        boolean failed = false;
+        Exception aborted = null;
         try {
             switch (method) {
                 case "signups":
                     result = new CborObject.CborBoolean(state.acceptingSignups());
                     break;
                 case "usernames":
-                    List<String> usernames = state.getAllUsernames();
-                    result = new CborObject.CborList(usernames.stream()
-                            .map(CborObject.CborString::new)
-                            .collect(Collectors.toList()));
-                    break;
+                    streamUsernames(exchange);
+                    return;
+                case "changes-since": {
+                    long seq = Long.parseLong(last.apply("seq"));
+                    long limit = params.containsKey("limit") ?
+                            Math.min(Long.parseLong(last.apply("limit")), MAX_CHANGES_PER_REQUEST) :
+                            MAX_CHANGES_PER_REQUEST;
+                    streamQuotaChanges(exchange, seq, limit);
+                    return;
+                }
                 case "allowed": {
                     String username = last.apply("username");
                     String token = last.apply("token");
@@ -82,20 +123,42 @@ public class QuotaHandler  implements HttpHandler {
                     result = new CborObject.CborLong(quota);
                     break;
                 }
+                case "quotas-by-name": {
+                    // a cbor list of usernames, to reply with a map from username to quota
+                    byte[] body = IOUtil.readFully(exchange.getRequestBody(), MAX_BATCH_REQUEST_SIZE);
+                    List<String> usernames = ((CborObject.CborList) CborObject.fromByteArray(body))
+                            .map(c -> ((CborObject.CborString) c).value);
+                    Map<String, Cborable> quotas = new TreeMap<>();
+                    state.getCurrentQuotas(usernames)
+                            .forEach((username, quota) -> quotas.put(username, new CborObject.CborLong(quota)));
+                    result = CborObject.CborMap.build(quotas);
+                    break;
+                }
                 case "payment-properties": {
                     PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
                     byte[] signedTime = ArrayOps.hexToBytes(last.apply("auth"));
-                    TimeLimited.isAllowedTime(signedTime, 120, dht, owner);
-                    String username = core.getUsername(owner).join();
+                    auth.isAllowedTime(signedTime, owner);
+                    String username = usernames.get(owner).join();
                     boolean newClientSecret = Boolean.parseBoolean(last.apply("new-client-secret"));
-                    result = state.getPaymentProperties(username, newClientSecret, ourUrl).toCbor();
-                    break;
+                    // reply when the bank responds, rather than blocking this handler thread
+                    CompletableFuture<PaymentProperties> props =
+                            state.getPaymentPropertiesAsync(username, newClientSecret, ourUrl);
+                    Runnable done = AdmissionExecutor.replyLater();
+                    props.whenComplete((res, err) -> {
+                        try {
+                            reply(exchange, metricLabel, t1, res == null ? null : res.toCbor(), err);
+                        } finally {
+                            done.run();
+                        }
+                    });
+                    replyLater = true;
+                    return;
                 }
                 case "quota": {
                     PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
                     byte[] signedTime = ArrayOps.hexToBytes(last.apply("auth"));
-                    String username = core.getUsername(owner).join();
-                    TimeLimited.isAllowedTime(signedTime, 120, dht, owner);
+                    String username = usernames.get(owner).join();
+                    auth.isAllowedTime(signedTime, owner);
                     long quota = state.getCurrentQuota(username);
                     result = new CborObject.CborLong(quota);
                     break;
@@ -117,11 +180,85 @@ public class QuotaHandler  implements HttpHandler {
             exchange.sendResponseHeaders(200, b.length);
             exchange.getResponseBody().write(b);
         } catch (Exception e) {
+            failed = true;
+            // once part of the body is sent, drop the connection, so the client can't mistake it for a whole reply
+            if (exchange.getResponseCode() != -1)
+                aborted = e;
+            else
+                HttpUtil.replyError(exchange, e);
+        } finally {
+            if (! replyLater) {
+                if (aborted == null)
+                    exchange.close();
+                handled(metricLabel, t1, failed);
+            }
+        }
+        if (aborted != null)
+            throw new IOException("Aborted " + method + " reply", aborted);
+    }
+
+    private void reply(HttpExchange exchange, String metricLabel, long t1, Cborable result, Throwable err) {
+        boolean failed = err != null;
+        try {
+            if (err != null) {
+                HttpUtil.replyError(exchange, err instanceof CompletionException ? err.getCause() : err);
+            } else {
+                byte[] b = result.serialize();
+                exchange.sendResponseHeaders(200, b.length);
+                exchange.getResponseBody().write(b);
+            }
+        } catch (Exception e) {
+            failed = true;
             HttpUtil.replyError(exchange, e);
         } finally {
             exchange.close();
-            long t2 = System.currentTimeMillis();
-            LOG.info("Quota admin handled " + method + " request in: " + (t2 - t1) + " mS");
+            handled(metricLabel, t1, failed);
         }
     }
+
+    private void handled(String metricLabel, long startNanos, boolean failed) {
+        metrics.gauge("quota_requests_in_flight", "Quota requests in flight", "method", metricLabel).decrementAndGet();
+        metrics.timer("quota_request_seconds", "Quota request latency", "method", metricLabel).recordSince(startNanos);
+        if (failed)
+            metrics.counter("quota_request_errors_total", "Failed quota requests", "method", metricLabel).incrementAndGet();
+    }
+
+    /**
+     *  Write the changes after seq as a cbor list of maps in a chunked response, a row at a time. Callers continue from
+     *  the last seq they receive, until they get fewer than limit changes.
+     */
+    private void streamQuotaChanges(HttpExchange exchange, long seq, long limit) throws IOException {
+        // there will be at least this many changes when we read them
+        int count = Math.toIntExact(Math.min(limit, state.countQuotaChanges(seq)));
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024);
+        CborEncoder encoder = new CborEncoder(out);
+        encoder.writeArrayStart(count);
+        state.streamQuotaChanges(seq, count, change -> change.toCbor().serialize(encoder));
+        out.flush();
+    }
+
+    /**
+     *  Write the usernames as a cbor list in a chunked response, a row at a time, rather than building the whole list.
+     *  The list length is counted in the same read as the usernames, as Peergos can't decode an indefinite length list.
+     */
+    private void streamUsernames(HttpExchange exchange) throws IOException {
+        OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024);
+        CborEncoder encoder = new CborEncoder(out);
+        state.streamUsernames(count -> {
+            try {
+                exchange.sendResponseHeaders(200, 0);
+                encoder.writeArrayStart(Math.toIntExact(count));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, username -> {
+            try {
+                encoder.writeTextString(username);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        out.flush();
+    }
 }
@@ -0,0 +1,101 @@
+package peergos.payment.http;
+
+import com.sun.net.httpserver.*;
+import peergos.payment.*;
+import peergos.payment.util.*;
+import peergos.shared.util.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Receives Stripe webhook events, verifies their signature and queues them for processing
+ */
+public class StripeWebhookHandler implements HttpHandler {
+    private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+    public static final String URL = "/stripe/webhook";
+    private static final int MAX_EVENT_SIZE = 1024 * 1024;
+    // Reject events signed longer ago than this, to limit replays
+    private static final long TIMESTAMP_TOLERANCE_SECONDS = 300;
+
+    private final byte[] signingSecret;
+    private final StripeEventProcessor events;
+
+    public StripeWebhookHandler(String signingSecret, StripeEventProcessor events) {
+        this.signingSecret = signingSecret.getBytes(StandardCharsets.UTF_8);
+        this.events = events;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (! exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = IOUtil.readFully(exchange.getRequestBody(), MAX_EVENT_SIZE);
+            String signature = exchange.getRequestHeaders().getFirst("Stripe-Signature");
+            if (signature == null || ! isValidSignature(signature, body, System.currentTimeMillis() / 1000)) {
+                LOG.warning("Rejected Stripe event with invalid signature");
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            StripeEvent event = StripeEvent.parse(new String(body, StandardCharsets.UTF_8));
+            // Stripe will retry the event later if we don't accept it now
+            exchange.sendResponseHeaders(events.offer(event) ? 200 : 503, -1);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error handling Stripe event", e);
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     *  The Stripe-Signature header has a timestamp, t, and one or more v1 signatures, each a hex HMAC-SHA256 of
+     *  t + "." + body
+     */
+    public boolean isValidSignature(String header, byte[] body, long nowSeconds) {
+        Optional<Long> timestamp = Optional.empty();
+        List<String> signatures = new ArrayList<>();
+        for (String part : header.split(",")) {
+            int split = part.indexOf("=");
+            if (split < 0)
+                continue;
+            String key = part.substring(0, split).trim();
+            String value = part.substring(split + 1).trim();
+            if (key.equals("t")) {
+                try {
+                    timestamp = Optional.of(Long.parseLong(value));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else if (key.equals("v1"))
+                signatures.add(value);
+        }
+        if (! timestamp.isPresent() || Math.abs(nowSeconds - timestamp.get()) > TIMESTAMP_TOLERANCE_SECONDS)
+            return false;
+        byte[] expected = ArrayOps.bytesToHex(sign(timestamp.get(), body)).getBytes(StandardCharsets.UTF_8);
+        for (String sig : signatures) {
+            if (MessageDigest.isEqual(expected, sig.getBytes(StandardCharsets.UTF_8)))
+                return true;
+        }
+        return false;
+    }
+
+    public byte[] sign(long timestamp, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(signingSecret, "HmacSHA256"));
+            mac.update((timestamp + ".").getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(body);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
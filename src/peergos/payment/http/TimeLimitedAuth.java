@@ -0,0 +1,90 @@
+package peergos.payment.http;
+
+import peergos.payment.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.asymmetric.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Checks signed timestamps like TimeLimited.isAllowedTime, but caches each owner's signing key rather than fetching it
+ * for every request, and rejects a signed timestamp that has already been used.
+ */
+public class TimeLimitedAuth {
+    public static final int DEFAULT_MAX_AGE_SECONDS = 120;
+    public static final int DEFAULT_KEY_CACHE_SIZE = 10_000;
+    public static final Duration DEFAULT_KEY_CACHE_TTL = Duration.ofMinutes(10);
+    public static final int DEFAULT_MAX_SEEN = 100_000;
+
+    private final TtlCache<PublicKeyHash, PublicSigningKey> keys;
+    private final int maxAgeSeconds;
+    private final int maxSeen;
+    private final LongSupplier clock;
+    // signed timestamp => when it can no longer be used anyway, oldest first
+    private final LinkedHashMap<ByteArrayWrapper, Long> seen = new LinkedHashMap<>();
+
+    public TimeLimitedAuth(ContentAddressedStorage dht,
+                           int maxAgeSeconds,
+                           int keyCacheSize,
+                           Duration keyCacheTtl,
+                           int maxSeen,
+                           LongSupplier clock) {
+        this.keys = new TtlCache<>(keyCacheSize, keyCacheTtl, owner -> dht.getSigningKey(owner)
+                .thenApply(key -> key.orElseThrow(() -> new IllegalStateException("Couldn't retrieve owner key!"))));
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.maxSeen = maxSeen;
+        this.clock = clock;
+    }
+
+    public TimeLimitedAuth(ContentAddressedStorage dht) {
+        this(dht, DEFAULT_MAX_AGE_SECONDS, DEFAULT_KEY_CACHE_SIZE, DEFAULT_KEY_CACHE_TTL, DEFAULT_MAX_SEEN,
+                System::currentTimeMillis);
+    }
+
+    /**
+     * @return the signed time in epoch millis
+     */
+    public long isAllowedTime(byte[] signedTime, PublicKeyHash owner) {
+        ByteArrayWrapper signed = new ByteArrayWrapper(signedTime);
+        long now = clock.getAsLong();
+        synchronized (seen) {
+            if (seen.containsKey(signed))
+                throw new IllegalStateException("Replayed auth!");
+        }
+        PublicSigningKey key = keys.get(owner).join();
+        CborObject cbor = CborObject.fromByteArray(key.unsignMessage(signedTime));
+        if (! (cbor instanceof CborObject.CborLong))
+            throw new IllegalStateException("Invalid cbor for time in authorisation!");
+        long time = ((CborObject.CborLong) cbor).value;
+        if (Math.abs(now - time) > maxAgeSeconds * 1000L)
+            throw new IllegalStateException("Stale auth time, is your clock accurate?");
+        synchronized (seen) {
+            // older entries would be rejected as stale anyway
+            Iterator<Long> expiries = seen.values().iterator();
+            while (expiries.hasNext()) {
+                long expiry = expiries.next();
+                if (expiry >= now && seen.size() < maxSeen)
+                    break;
+                expiries.remove();
+            }
+            if (seen.putIfAbsent(signed, now + 2 * maxAgeSeconds * 1000L) != null)
+                throw new IllegalStateException("Replayed auth!");
+        }
+        return time;
+    }
+
+    public TtlCache<PublicKeyHash, PublicSigningKey> getKeyCache() {
+        return keys;
+    }
+
+    public int seenCount() {
+        synchronized (seen) {
+            return seen.size();
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package peergos.payment.tests;
+
+import com.sun.net.httpserver.*;
+import peergos.payment.*;
+import peergos.payment.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/**
+ * A local stand in for the subset of the Stripe API that StripeProcessor uses: customers, creating and listing setup_intents,
+ * payment_methods, payment_intents and searching payment_intents by our reference. Latency, server errors and rate limiting (429) can be injected, either for the
+ * next n requests or at random with a given probability.
+ *
+ * Run main to load test a payment server against it, e.g. -port 12000 -latency-ms 300 -failure-rate 0.01
+ */
+public class FakeStripe {
+    private static final Logger LOG = Logger.getLogger("NULL_FORMAT");
+
+    private static class Customer {
+        public final String id;
+        public final String username;
+        public volatile String email;
+        public final List<Card> cards = new CopyOnWriteArrayList<>();
+
+        public Customer(String id, String username) {
+            this.id = id;
+            this.username = username;
+        }
+    }
+
+    private static class Card {
+        public final String id;
+        public final String email;
+        public final long created;
+
+        public Card(String id, String email, long created) {
+            this.id = id;
+            this.email = email;
+            this.created = created;
+        }
+    }
+
+    private static class SetupIntent {
+        public final String id;
+        public final String clientSecret;
+        public final String customerId;
+        public volatile String status;
+
+        public SetupIntent(String id, String clientSecret, String customerId, String status) {
+            this.id = id;
+            this.clientSecret = clientSecret;
+            this.customerId = customerId;
+            this.status = status;
+        }
+    }
+
+    private static class Response {
+        public final int status;
+        public final String body;
+        public final Map<String, String> headers;
+
+        public Response(int status, String body, Map<String, String> headers) {
+            this.status = status;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        public Response(int status, String body) {
+            this(status, body, Collections.emptyMap());
+        }
+    }
+
+    private final HttpServer server;
+    private final AtomicLong ids = new AtomicLong(0);
+    // so cards added in the same second still have a well defined order
+    private final AtomicLong lastCreated = new AtomicLong(0);
+    private final Map<String, Customer> customers = new ConcurrentHashMap<>();
+    // newest last
+    private final List<SetupIntent> setupIntents = new CopyOnWriteArrayList<>();
+    private final Map<String, Response> idempotentResponses = new ConcurrentHashMap<>();
+    // our payment reference => the payment intent created with it
+    private final Map<String, String> paymentIntents = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    // the client end of each connection a request has arrived on
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong totalCharged = new AtomicLong(0);
+    private final AtomicInteger failNext = new AtomicInteger(0);
+    private final AtomicInteger rateLimitNext = new AtomicInteger(0);
+    private final Queue<String> declineNext = new ConcurrentLinkedQueue<>();
+    private volatile Duration latency = Duration.ZERO;
+    private volatile double failureRate = 0;
+    private volatile double rateLimitRate = 0;
+    private volatile boolean autoConfirmSetupIntents = false;
+    private volatile Map<String, String> injectedErrorHeaders = Collections.emptyMap();
+
+    public FakeStripe(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 1000);
+        server.createContext("/v1/", this::handle);
+        // latency is simulated by sleeping, so don't let slow requests queue behind each other
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    /**
+     *  The probability of each request failing with a 500
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     *  The probability of each request being rate limited with a 429
+     */
+    public void setRateLimitRate(double rateLimitRate) {
+        this.rateLimitRate = rateLimitRate;
+    }
+
+    /**
+     *  Attach a new card to the customer whenever a setup intent is created, as if they completed the form
+     */
+    public void setAutoConfirmSetupIntents(boolean autoConfirm) {
+        this.autoConfirmSetupIntents = autoConfirm;
+    }
+
+    /**
+     *  Headers to send with injected 429 and 500 responses, like Retry-After or Stripe-Should-Retry
+     */
+    public void setInjectedErrorHeaders(Map<String, String> headers) {
+        this.injectedErrorHeaders = headers;
+    }
+
+    public void failNext(int requests) {
+        failNext.set(requests);
+    }
+
+    public void rateLimitNext(int requests) {
+        rateLimitNext.set(requests);
+    }
+
+    /**
+     *  Complete the customer's open setup intents, as if they filled in each card form
+     */
+    public void confirmSetupIntents(String customerId) {
+        for (SetupIntent intent : setupIntents)
+            if (intent.customerId.equals(customerId))
+                intent.status = "succeeded";
+    }
+
+    public int setupIntentsCreated() {
+        return setupIntents.size();
+    }
+
+    public void declineNextPayment(String message) {
+        declineNext.add(message);
+    }
+
+    public void addCard(String customerId, String email) {
+        Customer customer = customers.get(customerId);
+        if (customer == null)
+            throw new IllegalStateException("Unknown customer " + customerId);
+        long created = lastCreated.updateAndGet(prev -> Math.max(prev + 1, Instant.now().getEpochSecond()));
+        customer.cards.add(new Card(nextId("pm"), email, created));
+    }
+
+    public Optional<String> getEmail(String customerId) {
+        return Optional.ofNullable(customers.get(customerId)).map(c -> c.email);
+    }
+
+    /**
+     * @param path e.g. "/v1/payment_methods"
+     * @return the number of requests to path, including failed ones
+     */
+    public int requestCount(String path) {
+        AtomicInteger count = requestCounts.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the number of distinct connections requests have arrived on
+     */
+    public int connectionCount() {
+        return connections.size();
+    }
+
+    public long totalCharged() {
+        return totalCharged.get();
+    }
+
+    private String nextId(String prefix) {
+        return prefix + "_" + ids.incrementAndGet();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            requestCounts.computeIfAbsent(path, p -> new AtomicInteger(0)).incrementAndGet();
+            connections.add(exchange.getRemoteAddress());
+            if (! latency.isZero())
+                Thread.sleep(latency.toMillis());
+            Response resp = respond(exchange, path);
+            byte[] body = resp.body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            resp.headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+            exchange.sendResponseHeaders(resp.status, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Fake Stripe error", e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static boolean take(AtomicInteger remaining) {
+        return remaining.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+    }
+
+    private Response respond(HttpExchange exchange, String path) throws IOException {
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || ! auth.startsWith("Basic "))
+            return error(401, "invalid_request_error", "api_key_missing", "No API key provided");
+        if (take(rateLimitNext) || ThreadLocalRandom.current().nextDouble() < rateLimitRate)
+            return injected(error(429, "invalid_request_error", "rate_limit", "Too many requests"));
+        if (take(failNext) || ThreadLocalRandom.current().nextDouble() < failureRate)
+            return injected(error(500, "api_error", null, "Injected failure"));
+
+        String method = exchange.getRequestMethod();
+        if (method.equals("GET")) {
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+            if (path.equals("/v1/payment_methods"))
+                return listPaymentMethods(query);
+            if (path.equals("/v1/setup_intents"))
+                return listSetupIntents(query);
+            if (path.equals("/v1/payment_intents/search"))
+                return searchPaymentIntents(query);
+            return error(404, "invalid_request_error", "resource_missing", "Unrecognized request URL");
+        }
+        Map<String, String> params = parseForm(new String(IOUtil.readFully(exchange.getRequestBody(), 1024 * 1024), StandardCharsets.UTF_8));
+        String idempotencyKey = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        if (idempotencyKey == null)
+            return post(path, params);
+        // a retry gets the original response
+        String key = path + " " + idempotencyKey;
+        Response previous = idempotentResponses.get(key);
+        if (previous != null)
+            return previous;
+        synchronized (this) {
+            return idempotentResponses.computeIfAbsent(key, k -> post(path, params));
+        }
+    }
+
+    private Response post(String path, Map<String, String> params) {
+        if (path.equals("/v1/customers"))
+            return createCustomer(params);
+        if (path.startsWith("/v1/customers/"))
+            return updateCustomer(path.substring("/v1/customers/".length()), params);
+        if (path.equals("/v1/setup_intents"))
+            return createSetupIntent(params);
+        if (path.equals("/v1/payment_intents"))
+            return createPaymentIntent(params);
+        return error(404, "invalid_request_error", "resource_missing", "Unrecognized request URL");
+    }
+
+    private Response createCustomer(Map<String, String> params) {
+        Customer customer = new Customer(nextId("cus"), params.get("metadata[username]"));
+        customers.put(customer.id, customer);
+        return ok(customerJson(customer));
+    }
+
+    private Response updateCustomer(String id, Map<String, String> params) {
+        Customer customer = customers.get(id);
+        if (customer == null)
+            return missing("customer", id);
+        if (params.containsKey("email"))
+            customer.email = params.get("email");
+        return ok(customerJson(customer));
+    }
+
+    private Response createSetupIntent(Map<String, String> params) {
+        String customerId = params.get("customer");
+        Customer customer = customers.get(customerId);
+        if (customer == null)
+            return missing("customer", customerId);
+        String id = nextId("seti");
+        SetupIntent intent = new SetupIntent(id, id + "_secret_" + ids.incrementAndGet(), customerId,
+                autoConfirmSetupIntents ? "succeeded" : "requires_payment_method");
+        setupIntents.add(intent);
+        if (autoConfirmSetupIntents)
+            addCard(customerId, (customer.username == null ? customerId : customer.username) + "@example.com");
+        // the form is filled in after the intent is created
+        return ok(setupIntentJson(intent, "requires_payment_method"));
+    }
+
+    private Response listSetupIntents(Map<String, String> query) {
+        String customerId = query.get("customer");
+        List<SetupIntent> all = new ArrayList<>(setupIntents);
+        Collections.reverse(all);
+        String data = all.stream()
+                .filter(intent -> intent.customerId.equals(customerId))
+                .map(intent -> setupIntentJson(intent, intent.status))
+                .collect(Collectors.joining(","));
+        return ok("{\"object\":\"list\",\"data\":[" + data + "],\"has_more\":false,\"url\":\"/v1/setup_intents\"}");
+    }
+
+    private static String setupIntentJson(SetupIntent intent, String status) {
+        return "{\"id\":" + quote(intent.id) +
+                ",\"object\":\"setup_intent\"" +
+                ",\"client_secret\":" + quote(intent.clientSecret) +
+                ",\"customer\":" + quote(intent.customerId) +
+                ",\"status\":" + quote(status) + "}";
+    }
+
+    private Response listPaymentMethods(Map<String, String> query) {
+        String customerId = query.get("customer");
+        Customer customer = customers.get(customerId);
+        if (customer == null)
+            return missing("customer", customerId);
+        String data = customer.cards.stream()
+                .map(card -> "{\"id\":" + quote(card.id) +
+                        ",\"object\":\"payment_method\"" +
+                        ",\"billing_details\":{\"email\":" + quote(card.email) + "}" +
+                        ",\"created\":" + card.created +
+                        ",\"customer\":" + quote(customerId) +
+                        ",\"type\":\"card\"}")
+                .collect(Collectors.joining(","));
+        return ok("{\"object\":\"list\",\"data\":[" + data + "],\"has_more\":false,\"url\":\"/v1/payment_methods\"}");
+    }
+
+    private Response createPaymentIntent(Map<String, String> params) {
+        String customerId = params.get("customer");
+        Customer customer = customers.get(customerId);
+        if (customer == null)
+            return missing("customer", customerId);
+        String cardId = params.get("payment_method");
+        if (customer.cards.stream().noneMatch(c -> c.id.equals(cardId)))
+            return missing("payment_method", cardId);
+        long amount = Long.parseLong(params.get("amount"));
+        String id = nextId("pi");
+        String metadata = params.entrySet().stream()
+                .filter(e -> e.getKey().startsWith("metadata["))
+                .map(e -> quote(e.getKey().substring(9, e.getKey().length() - 1)) + ":" + quote(e.getValue()))
+                .collect(Collectors.joining(","));
+        String declined = declineNext.poll();
+        String intent = "{\"id\":" + quote(id) +
+                ",\"object\":\"payment_intent\"" +
+                ",\"amount\":" + amount +
+                ",\"currency\":" + quote(params.get("currency")) +
+                ",\"customer\":" + quote(customerId) +
+                ",\"payment_method\":" + quote(cardId) +
+                ",\"metadata\":{" + metadata + "}" +
+                (declined != null ?
+                        ",\"last_payment_error\":{\"message\":" + quote(declined) + "},\"status\":\"requires_payment_method\"}" :
+                        ",\"status\":\"succeeded\"}");
+        String reference = params.get("metadata[" + StripeProcessor.PAYMENT_REFERENCE + "]");
+        if (reference != null)
+            paymentIntents.put(reference, intent);
+        if (declined != null)
+            return new Response(402, "{\"error\":{\"type\":\"card_error\",\"code\":\"card_declined\"" +
+                    ",\"message\":" + quote(declined) +
+                    ",\"payment_intent\":" + intent + "}}");
+        totalCharged.addAndGet(amount);
+        return ok(intent);
+    }
+
+    /**
+     *  Only supports the query StripeProcessor makes, metadata['payment_ref']:'reference'
+     */
+    private Response searchPaymentIntents(Map<String, String> query) {
+        String search = query.getOrDefault("query", "");
+        String prefix = "metadata['" + StripeProcessor.PAYMENT_REFERENCE + "']:'";
+        if (! search.startsWith(prefix) || ! search.endsWith("'"))
+            return error(400, "invalid_request_error", "parameter_invalid", "Unsupported search query");
+        String intent = paymentIntents.get(search.substring(prefix.length(), search.length() - 1));
+        return ok("{\"object\":\"search_result\",\"data\":[" + (intent == null ? "" : intent) + "]" +
+                ",\"has_more\":false,\"url\":\"/v1/payment_intents/search\"}");
+    }
+
+    private static String customerJson(Customer customer) {
+        return "{\"id\":" + quote(customer.id) +
+                ",\"object\":\"customer\"" +
+                ",\"email\":" + quote(customer.email) +
+                ",\"metadata\":{\"username\":" + quote(customer.username) + "}}";
+    }
+
+    private static Response ok(String json) {
+        return new Response(200, json);
+    }
+
+    private Response injected(Response err) {
+        return new Response(err.status, err.body, injectedErrorHeaders);
+    }
+
+    private static Response missing(String type, String id) {
+        return error(404, "invalid_request_error", "resource_missing", "No such " + type + ": '" + id + "'");
+    }
+
+    private static Response error(int status, String type, String code, String message) {
+        return new Response(status, "{\"error\":{\"type\":" + quote(type) +
+                ",\"code\":" + quote(code) +
+                ",\"message\":" + quote(message) + "}}");
+    }
+
+    private static String quote(String s) {
+        if (s == null)
+            return "null";
+        StringBuilder res = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                res.append('\\').append(c);
+            else if (c < 0x20)
+                res.append(String.format("\\u%04x", (int) c));
+            else
+                res.append(c);
+        }
+        return res.append('"').toString();
+    }
+
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> res = new HashMap<>();
+        if (form == null || form.isEmpty())
+            return res;
+        for (String pair : form.split("&")) {
+            int split = pair.indexOf("=");
+            if (split < 0)
+                continue;
+            res.put(URLDecoder.decode(pair.substring(0, split), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8));
+        }
+        return res;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Args a = Args.parse(args);
+        FakeStripe stripe = new FakeStripe(new InetSocketAddress("localhost", a.getInt("port", 12000)));
+        stripe.setLatency(Duration.ofMillis(a.getInt("latency-ms", 300)));
+        stripe.setFailureRate(Double.parseDouble(a.getArg("failure-rate", "0")));
+        stripe.setRateLimitRate(Double.parseDouble(a.getArg("rate-limit-rate", "0")));
+        stripe.setAutoConfirmSetupIntents(true);
+        stripe.start();
+        LOG.info("Fake Stripe listening at " + stripe.getUrl() + ", run the payment server with -stripe-url " + stripe.getUrl());
+    }
+}
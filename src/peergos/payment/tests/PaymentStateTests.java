@@ -1,11 +1,32 @@
 package peergos.payment.tests;
 
+import com.sun.net.httpserver.*;
 import org.junit.*;
 import peergos.payment.*;
+import peergos.payment.http.*;
 import peergos.payment.util.*;
+import peergos.server.crypto.asymmetric.curve25519.*;
+import peergos.server.crypto.random.*;
+import peergos.server.storage.admin.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.ArrayOps;
+import peergos.shared.util.Triple;
 
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.*;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 public class PaymentStateTests {
@@ -22,9 +43,15 @@ public class PaymentStateTests {
         private final Random r = new Random(0);
         private final List<PaymentResult> payments = new ArrayList<>();
         private int failuresLeft = 0;
+        private int pendingLeft = 0;
+        private int lostLeft = 0;
         private String errorMessage = "Failed payment";
+        private String lastReference;
+        private int searches = 0;
+        // reference => the outcome of the charge, as the bank would report it
+        private final Map<String, PaymentResult> outcomes = new HashMap<>();
 
-        public List<PaymentResult> getPayments() {
+        public synchronized List<PaymentResult> getPayments() {
             return new ArrayList<>(payments);
         }
 
@@ -33,7 +60,27 @@ public class PaymentStateTests {
             errorMessage = error;
         }
 
-        private String rndString() {
+        public synchronized void pendNext() {
+            pendingLeft = 1;
+        }
+
+        /**
+         *  The next charge times out before it reaches the bank
+         */
+        public synchronized void loseNext() {
+            lostLeft = 1;
+        }
+
+        public synchronized void settle(String reference, Optional<String> error) {
+            PaymentResult pending = outcomes.get(reference);
+            outcomes.put(reference, new PaymentResult(pending.amount, pending.currency, pending.time, error));
+        }
+
+        public synchronized String getLastReference() {
+            return lastReference;
+        }
+
+        private synchronized String rndString() {
             return Integer.toString(r.nextInt(Integer.MAX_VALUE));
         }
 
@@ -49,21 +96,46 @@ public class PaymentStateTests {
         }
 
         @Override
-        public PaymentResult takePayment(CustomerResult cus,
-                                         Natural cents,
-                                         String currency,
-                                         LocalDateTime now,
-                                         Natural forQuota) {
+        public synchronized PaymentResult takePayment(CustomerResult cus,
+                                                      Natural cents,
+                                                      String currency,
+                                                      LocalDateTime now,
+                                                      Natural forQuota,
+                                                      String reference) {
             PaymentResult res;
-            if (failuresLeft > 0) {
+            lastReference = reference;
+            if (lostLeft > 0) {
+                lostLeft--;
+                return PaymentResult.pending(cents, currency, now);
+            }
+            if (pendingLeft > 0) {
+                res = PaymentResult.pending(cents, currency, now);
+                pendingLeft--;
+            } else if (failuresLeft > 0) {
                 res = new PaymentResult(cents, currency, now, Optional.of(errorMessage));
                 failuresLeft--;
             } else {
                 res = new PaymentResult(cents, currency, now, Optional.empty());
             }
             payments.add(res);
+            outcomes.put(reference, res);
             return res;
         }
+
+        public synchronized int getSearches() {
+            return searches;
+        }
+
+        @Override
+        public synchronized Optional<PaymentResult> findPayment(String reference) {
+            searches++;
+            return Optional.ofNullable(outcomes.get(reference));
+        }
+
+        @Override
+        public Optional<IntentResult> findSetupIntent(CustomerResult cus) {
+            return Optional.empty();
+        }
     }
 
     private static PaymentState buildPaymentState(Bank bank, Pricer pricer) {
@@ -175,6 +247,204 @@ public class PaymentStateTests {
         }
     }
 
+    @Test
+    public void pendingPaymentConfirmedByWebhook() throws Exception {
+        AcceptAll bank = new AcceptAll();
+        PaymentState global = buildPaymentState(bank);
+        StripeEventProcessor events = new StripeEventProcessor(global, customer -> {}, 10);
+        String username = "bob";
+        Natural desiredQuota = new Natural(5 * GIGABYTE);
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser(username, now);
+        bank.pendNext();
+        global.setDesiredQuota(username, desiredQuota, now);
+        Assert.assertTrue("No quota while pending", global.getCurrentQuota(username) == freeQuota.val);
+
+        // don't charge again while the payment is pending
+        global.processAll(now.plusHours(1));
+        Assert.assertTrue("One payment", bank.getPayments().size() == 1);
+
+        String json = "{\"id\":\"evt_1\",\"type\":\"payment_intent.succeeded\",\"data\":{\"object\":" +
+                "{\"id\":\"pi_1\",\"metadata\":{\"" + StripeProcessor.PAYMENT_REFERENCE + "\":\"" + bank.getLastReference() + "\"}}}}";
+        StripeWebhookHandler webhook = new StripeWebhookHandler("whsec_test", events);
+        long t = System.currentTimeMillis() / 1000;
+        byte[] body = json.getBytes();
+        String signature = "t=" + t + ",v1=" + ArrayOps.bytesToHex(webhook.sign(t, body));
+        Assert.assertTrue("Valid signature", webhook.isValidSignature(signature, body, t));
+        Assert.assertFalse("Tampered body", webhook.isValidSignature(signature, (json + " ").getBytes(), t));
+        Assert.assertFalse("Stale signature", webhook.isValidSignature(signature, body, t + 3600));
+
+        events.process(StripeEvent.parse(json), now.plusHours(2));
+        Assert.assertTrue("Quota granted", global.getCurrentQuota(username) == desiredQuota.val + freeQuota.val);
+
+        // a redelivered event is ignored
+        events.process(StripeEvent.parse(json), now.plusHours(3));
+        Assert.assertTrue("One payment", bank.getPayments().size() == 1);
+        Assert.assertTrue("Quota unchanged", global.getCurrentQuota(username) == desiredQuota.val + freeQuota.val);
+    }
+
+    @Test
+    public void pendingPaymentReconciledWithoutWebhook() {
+        AcceptAll bank = new AcceptAll();
+        PaymentState global = buildPaymentState(bank);
+        String username = "bob";
+        Natural desiredQuota = new Natural(5 * GIGABYTE);
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser(username, now);
+        bank.pendNext();
+        global.setDesiredQuota(username, desiredQuota, now);
+        String reference = bank.getLastReference();
+
+        global.reconcilePendingPayments(now.plusHours(1));
+        Assert.assertTrue("No quota while processing", global.getCurrentQuota(username) == freeQuota.val);
+
+        bank.settle(reference, Optional.empty());
+        Triple<Integer, Integer, Integer> reconciled = global.reconcilePendingPayments(now.plusHours(2));
+        Assert.assertTrue("Reconciled", reconciled.left == 1);
+        Assert.assertTrue("Quota granted", global.getCurrentQuota(username) == desiredQuota.val + freeQuota.val);
+        Assert.assertTrue("One payment", bank.getPayments().size() == 1);
+
+        // a renewal that never reached the bank is sent again with the same reference
+        LocalDateTime renewal = now.plusMonths(1).plusDays(1);
+        bank.loseNext();
+        global.processAll(renewal);
+        String lost = bank.getLastReference();
+        global.reconcilePendingPayments(renewal.plusMinutes(10));
+        global.processAll(renewal.plusMinutes(20));
+        Assert.assertTrue("Not retried yet", bank.getPayments().size() == 1);
+        Assert.assertTrue("Only searched once the retry delay passed", bank.getSearches() == 1);
+        global.reconcilePendingPayments(renewal.plusHours(2));
+        Assert.assertTrue("Retried", bank.getPayments().size() == 2);
+        Assert.assertTrue("Same reference", bank.getLastReference().equals(lost));
+        Assert.assertTrue("Quota renewed", global.getCurrentQuota(username) == desiredQuota.val + freeQuota.val);
+        Assert.assertTrue("Nothing pending", global.reconcilePendingPayments(renewal.plusDays(1)).left == 0);
+    }
+
+    @Test
+    public void openCircuitDefersBilling() throws Exception {
+        AtomicBoolean bankDown = new AtomicBoolean(false);
+        AtomicInteger bankCalls = new AtomicInteger(0);
+        AcceptAll bank = new AcceptAll() {
+            @Override
+            public PaymentResult takePayment(CustomerResult cus,
+                                             Natural cents,
+                                             String currency,
+                                             LocalDateTime now,
+                                             Natural forQuota,
+                                             String reference) {
+                bankCalls.incrementAndGet();
+                if (bankDown.get())
+                    throw new BankUnavailableException("Bank is down");
+                return super.takePayment(cus, cents, currency, now, forQuota, reference);
+            }
+        };
+        CircuitBreakerBank breaker = new CircuitBreakerBank(bank, 2, Duration.ofMillis(200));
+        PaymentState global = buildPaymentState(breaker);
+        Natural desiredQuota = new Natural(5 * GIGABYTE);
+        LocalDateTime now = LocalDateTime.now();
+        int users = 6;
+        for (int i=0; i < users; i++) {
+            global.ensureUser("user" + i, now);
+            global.setDesiredQuota("user" + i, desiredQuota, now);
+        }
+        Assert.assertTrue("Initial payments", bankCalls.get() == users);
+
+        bankDown.set(true);
+        global.processAll(now.plusMonths(1).plusDays(1));
+        Assert.assertTrue("Breaker open", breaker.getState() == CircuitBreakerBank.State.OPEN);
+        Assert.assertTrue("Stopped calling the bank", bankCalls.get() == users + 2);
+        // the charges that reached the bank may have been taken, so they stay pending rather than being retried
+        Assert.assertTrue("Unsent charges deferred", global.deferredUserCount() == users - 2);
+        Assert.assertTrue("Quota kept", global.getCurrentQuota("user0") == desiredQuota.val + freeQuota.val);
+
+        bankDown.set(false);
+        Thread.sleep(300);
+        Assert.assertTrue("Open until probed", breaker.getState() == CircuitBreakerBank.State.OPEN);
+        LocalDateTime renewal = now.plusMonths(1).plusDays(1);
+        Triple<Integer, Integer, Integer> retried = global.retryDeferred(renewal);
+        Assert.assertTrue("Deferred paid", retried.left == users - 2);
+        Assert.assertTrue("Breaker closed", breaker.getState() == CircuitBreakerBank.State.CLOSED);
+        Assert.assertTrue("None deferred", global.deferredUserCount() == 0);
+
+        Triple<Integer, Integer, Integer> reconciled = global.reconcilePendingPayments(renewal.plusHours(2));
+        Assert.assertTrue("Uncertain charges resent", reconciled.left == 2);
+        Assert.assertTrue("One renewal each", bank.getPayments().size() == 2 * users);
+    }
+
+    @Test
+    public void staleSuccessDoesntCloseCircuit() throws Exception {
+        CountDownLatch slowCallStarted = new CountDownLatch(1);
+        CountDownLatch finishSlowCall = new CountDownLatch(1);
+        AcceptAll bank = new AcceptAll() {
+            @Override
+            public PaymentResult takePayment(CustomerResult cus,
+                                             Natural cents,
+                                             String currency,
+                                             LocalDateTime now,
+                                             Natural forQuota,
+                                             String reference) {
+                if (reference.equals("slow")) {
+                    slowCallStarted.countDown();
+                    try {
+                        finishSlowCall.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return super.takePayment(cus, cents, currency, now, forQuota, reference);
+                }
+                throw new BankUnavailableException("Bank is down");
+            }
+        };
+        CircuitBreakerBank breaker = new CircuitBreakerBank(bank, 1, Duration.ofMinutes(1));
+        CustomerResult cus = new CustomerResult("cus_1");
+        CompletableFuture<PaymentResult> slow = breaker.takePaymentAsync(cus, Natural.of(500), "gbp",
+                LocalDateTime.now(), Natural.of(5 * GIGABYTE), "slow");
+        Assert.assertTrue("Slow call in flight", slowCallStarted.await(5, TimeUnit.SECONDS));
+        try {
+            breaker.takePayment(cus, Natural.of(500), "gbp", LocalDateTime.now(), Natural.of(5 * GIGABYTE), "fails");
+            Assert.fail("Bank is down");
+        } catch (BankUnavailableException expected) {}
+        Assert.assertTrue("Breaker open", breaker.getState() == CircuitBreakerBank.State.OPEN);
+
+        finishSlowCall.countDown();
+        Assert.assertTrue("Slow call paid", slow.get(5, TimeUnit.SECONDS).isSuccessful());
+        Assert.assertTrue("Still open", breaker.getState() == CircuitBreakerBank.State.OPEN);
+    }
+
+    @Test
+    public void unknownOutcomeIsNotChargedTwice() {
+        AtomicBoolean timeout = new AtomicBoolean(false);
+        AcceptAll bank = new AcceptAll() {
+            @Override
+            public PaymentResult takePayment(CustomerResult cus,
+                                             Natural cents,
+                                             String currency,
+                                             LocalDateTime now,
+                                             Natural forQuota,
+                                             String reference) {
+                PaymentResult res = super.takePayment(cus, cents, currency, now, forQuota, reference);
+                // the charge is taken, but the reply is lost
+                if (timeout.getAndSet(false))
+                    throw new BankUnavailableException("Connection reset");
+                return res;
+            }
+        };
+        PaymentState global = buildPaymentState(bank);
+        String username = "bob";
+        Natural desiredQuota = new Natural(5 * GIGABYTE);
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser(username, now);
+        timeout.set(true);
+        global.setDesiredQuota(username, desiredQuota, now);
+        Assert.assertTrue("Not deferred", global.deferredUserCount() == 0);
+        Assert.assertTrue("No quota yet", global.getCurrentQuota(username) == freeQuota.val);
+
+        global.processAll(now.plusHours(2));
+        global.reconcilePendingPayments(now.plusHours(2));
+        Assert.assertTrue("Charged once", bank.getPayments().size() == 1);
+        Assert.assertTrue("Quota granted", global.getCurrentQuota(username) == desiredQuota.val + freeQuota.val);
+    }
+
     @Test
     public void increaseQuotaAndTakePayment() {
         Natural bytesPerCent = new Natural(GIGABYTE / 100);
@@ -284,6 +554,619 @@ public class PaymentStateTests {
         Assert.assertTrue("First payment is correct", payments.get(0).amount.equals(pricer.convertBytesToCents(desiredQuota)));
     }
 
+    @Test
+    public void billingUpdateIsConditionalOnExpiry() {
+        SqlPaymentStore store = new SqlPaymentStore(Builder.buildEphemeralSqlite(), false);
+        String username = "bob";
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        store.ensureUser(username, freeQuota, now);
+        LocalDateTime expiry = now.plusMonths(1);
+        Natural quota = Natural.of(5 * GIGABYTE);
+        Assert.assertTrue("Applied", store.applyBilling(username, now, Natural.of(100), quota, expiry, Optional.empty()));
+        Assert.assertFalse("Stale expiry rejected",
+                store.applyBilling(username, now, Natural.ZERO, Natural.ZERO, now, Optional.of("error")));
+
+        UserState user = store.getUserState(username).get();
+        Assert.assertTrue("Balance", user.getCurrentBalance().val == 100);
+        Assert.assertTrue("Quota", user.getQuota().equals(quota));
+        Assert.assertTrue("Expiry", user.getQuotaExpiry().equals(expiry));
+        Assert.assertTrue("No error", ! user.getError().isPresent());
+    }
+
+    @Test
+    public void onlyDueUsersAreProcessed() {
+        SqlPaymentStore store = new SqlPaymentStore(Builder.buildEphemeralSqlite(), false);
+        PaymentState global = new PaymentState(store, new LinearPricer(new Natural(GIGABYTE / 100)),
+                new Natural(500), new AcceptAll(), freeQuota, 10, allowedQuotas);
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser("free", now);
+        global.ensureUser("paid", now);
+        global.setDesiredQuota("paid", new Natural(5 * GIGABYTE), now);
+
+        Assert.assertTrue("Nobody due", store.getUsersToProcess(now.plusDays(1)).isEmpty());
+        Assert.assertTrue("Paid user due on expiry",
+                store.getUsersToProcess(now.plusMonths(1).plusDays(1)).equals(Arrays.asList("paid")));
+    }
+
+    @Test
+    public void streamUsernames() throws Exception {
+        PaymentState global = buildPaymentState(new AcceptAll());
+        LocalDateTime now = LocalDateTime.now();
+        List<String> usernames = IntStream.range(0, 5)
+                .mapToObj(i -> "user" + i)
+                .collect(Collectors.toList());
+        for (String username : usernames)
+            global.ensureUser(username, now);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/" + HttpQuotaAdmin.QUOTA_URL, new QuotaHandler(global, null, null, "http://localhost"));
+        server.start();
+        try {
+            URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/" + HttpQuotaAdmin.QUOTA_URL + "usernames");
+            byte[] raw = IOUtil.readFully(url.openStream(), 1024 * 1024);
+            List<String> res = ((CborObject.CborList) CborObject.fromByteArray(raw))
+                    .map(c -> ((CborObject.CborString) c).value);
+            Assert.assertTrue("All usernames", new HashSet<>(res).equals(new HashSet<>(usernames)));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void failedUsernameStreamIsNotMistakenForWholeList() throws Exception {
+        SqlPaymentStore store = new SqlPaymentStore(Builder.buildEphemeralSqlite(), false) {
+            @Override
+            public void streamUsernames(LongConsumer onCount, Consumer<String> consumer) {
+                AtomicInteger sent = new AtomicInteger();
+                super.streamUsernames(onCount, username -> {
+                    if (sent.incrementAndGet() > 2)
+                        throw new IllegalStateException("Database went away");
+                    consumer.accept(username);
+                });
+            }
+        };
+        PaymentState global = new PaymentState(store, new LinearPricer(new Natural(GIGABYTE / 100)),
+                new Natural(500), new AcceptAll(), freeQuota, 10, allowedQuotas);
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < 5; i++)
+            global.ensureUser("user" + i, now);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/" + HttpQuotaAdmin.QUOTA_URL, new QuotaHandler(global, null, null, "http://localhost"));
+        server.start();
+        try {
+            URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/" + HttpQuotaAdmin.QUOTA_URL + "usernames");
+            try {
+                IOUtil.readFully(url.openStream(), 1024 * 1024);
+                Assert.fail("Truncated list read as a whole reply");
+            } catch (IOException expected) {}
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void batchQuotaLookup() throws Exception {
+        CachingPaymentStore store = new CachingPaymentStore(new SqlPaymentStore(Builder.buildEphemeralSqlite(), false), 10);
+        PaymentState global = new PaymentState(store, new LinearPricer(new Natural(GIGABYTE / 100)),
+                new Natural(500), new AcceptAll(), freeQuota, 10, allowedQuotas);
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser("alice", now);
+        global.ensureUser("bob", new Natural(GIGABYTE), now);
+        global.getCurrentQuota("alice");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/" + HttpQuotaAdmin.QUOTA_URL, new QuotaHandler(global, null, null, "http://localhost"));
+        server.start();
+        try {
+            URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/" + HttpQuotaAdmin.QUOTA_URL + "quotas-by-name");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            List<CborObject.CborString> usernames = Stream.of("alice", "bob", "carol")
+                    .map(CborObject.CborString::new)
+                    .collect(Collectors.toList());
+            conn.getOutputStream().write(new CborObject.CborList(usernames).serialize());
+            CborObject.CborMap res = (CborObject.CborMap) CborObject.fromByteArray(IOUtil.readFully(conn.getInputStream(), 1024 * 1024));
+            Assert.assertTrue("All users", res.keySet().equals(Set.of("alice", "bob", "carol")));
+            Assert.assertTrue("Quota", res.getLong("alice") == freeQuota.val);
+            Assert.assertTrue("Free quota", res.getLong("bob") == GIGABYTE);
+            Assert.assertTrue("New user", res.getLong("carol") == freeQuota.val && global.hasUser("carol"));
+            Assert.assertTrue("Cached user served from cache", store.getHits() == 1);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void quotaChangeFeed() throws Exception {
+        PaymentState global = buildPaymentState(new AcceptAll());
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser("alice", now);
+        global.ensureUser("bob", now);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/" + HttpQuotaAdmin.QUOTA_URL, new QuotaHandler(global, null, null, "http://localhost"));
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort() + "/" + HttpQuotaAdmin.QUOTA_URL + "changes-since?seq=";
+            Function<Long, List<CborObject.CborMap>> changesSince = seq -> {
+                try {
+                    byte[] raw = IOUtil.readFully(new URL(base + seq).openStream(), 1024 * 1024);
+                    return ((CborObject.CborList) CborObject.fromByteArray(raw)).map(c -> (CborObject.CborMap) c);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            List<CborObject.CborMap> all = changesSince.apply(0L);
+            Assert.assertTrue("New users", all.stream().map(c -> c.getString("name")).collect(Collectors.toList())
+                    .equals(Arrays.asList("alice", "bob")));
+            long seq = all.get(1).getLong("seq");
+            Assert.assertTrue("Up to date", changesSince.apply(seq).isEmpty());
+
+            // paying for more quota changes the quota and expiry
+            global.setDesiredQuota("alice", new Natural(5 * GIGABYTE), now);
+            List<CborObject.CborMap> paid = changesSince.apply(seq);
+            Assert.assertTrue("One change", paid.size() == 1 && paid.get(0).getString("name").equals("alice"));
+            Assert.assertTrue("New quota", paid.get(0).getLong("quota") == 5 * GIGABYTE + freeQuota.val);
+            Assert.assertTrue("Later seq", paid.get(0).getLong("seq") > seq);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     *  Needs a Postgres server, so only runs when POSTGRES_HOST, POSTGRES_USER and POSTGRES_PASSWORD are set
+     */
+    @Test
+    public void postgresQuotaChangesVisibleInSeqOrder() throws Exception {
+        String host = System.getenv("POSTGRES_HOST");
+        Assume.assumeTrue("No Postgres server", host != null);
+        Args a = Args.parse(new String[]{"-use-postgres", "true", "-postgres.host", host,
+                "-postgres.username", System.getenv("POSTGRES_USER"),
+                "-postgres.password", System.getenv("POSTGRES_PASSWORD"),
+                "-postgres.database", System.getenv().getOrDefault("POSTGRES_DB", "peergos")}, Optional.empty(), false);
+        Supplier<Connection> database = Builder.getDBConnector(a, "payment-store-sql-file");
+        SqlPaymentStore store = new SqlPaymentStore(database, true);
+        String first = "first" + System.nanoTime(), second = "second" + System.nanoTime();
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        store.ensureUser(first, freeQuota, now);
+        store.ensureUser(second, freeQuota, now);
+        AtomicLong seq = new AtomicLong(0);
+        store.streamQuotaChanges(0, Long.MAX_VALUE, c -> seq.set(c.seq));
+
+        String update = "UPDATE quotas SET free = free + 1 WHERE name = ?;";
+        List<String> changed = new ArrayList<>();
+        try (Connection slow = database.get()) {
+            // the first change is made before the second, but commits after it
+            slow.setAutoCommit(false);
+            try (PreparedStatement statement = slow.prepareStatement(update)) {
+                statement.setString(1, first);
+                statement.executeUpdate();
+            }
+            CompletableFuture<Void> fast = CompletableFuture.runAsync(() -> {
+                try (Connection conn = database.get();
+                     PreparedStatement statement = conn.prepareStatement(update)) {
+                    statement.setString(1, second);
+                    statement.executeUpdate();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            // writers don't wait for each other
+            fast.get(10, TimeUnit.SECONDS);
+            store.streamQuotaChanges(seq.get(), Long.MAX_VALUE, c -> {
+                changed.add(c.username);
+                seq.set(c.seq);
+            });
+            Assert.assertTrue("Only the committed change", changed.equals(Arrays.asList(second)));
+            slow.commit();
+        }
+        // a reader continuing from the last seq it received still sees the change that committed later
+        store.streamQuotaChanges(seq.get(), Long.MAX_VALUE, c -> changed.add(c.username));
+        Assert.assertTrue("Late commit not skipped", changed.equals(Arrays.asList(second, first)));
+    }
+
+    @Test
+    public void overloadedServerRejectsRequests() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        AdmissionExecutor executor = new AdmissionExecutor(ExecutorMode.CACHED.build(1, "test"), 1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/slow", exchange -> {
+            // reply after the handler returns, like payment-properties
+            Runnable done = AdmissionExecutor.replyLater();
+            CompletableFuture.runAsync(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                    exchange.sendResponseHeaders(200, -1);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    exchange.close();
+                    done.run();
+                }
+            });
+        }).getFilters().add(executor.filter());
+        server.setExecutor(executor);
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/slow";
+            CompletableFuture<Integer> slow = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return ((HttpURLConnection) new URL(url).openConnection()).getResponseCode();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            started.await();
+            HttpURLConnection rejected = (HttpURLConnection) new URL(url).openConnection();
+            Assert.assertTrue("Rejected", rejected.getResponseCode() == 503);
+            Assert.assertTrue("Counted", executor.getRejectedRequests() == 1);
+            release.countDown();
+            Assert.assertTrue("Slow request completed", slow.get(5, TimeUnit.SECONDS) == 200);
+            long end = System.currentTimeMillis() + 5_000;
+            while (executor.availablePermits() == 0 && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            Assert.assertTrue("Released once replied", executor.availablePermits() == 1);
+        } finally {
+            server.stop(0);
+        }
+
+        if (Runtime.version().feature() < 21) {
+            try {
+                ExecutorMode.VIRTUAL.build(1, "test");
+                Assert.fail("Virtual threads before Java 21");
+            } catch (IllegalStateException e) {}
+        }
+    }
+
+    @Test
+    public void cachedStore() {
+        CachingPaymentStore store = new CachingPaymentStore(new SqlPaymentStore(Builder.buildEphemeralSqlite(), false), 2);
+        AcceptAll bank = new AcceptAll();
+        PaymentState global = new PaymentState(store, new LinearPricer(new Natural(GIGABYTE / 100)),
+                new Natural(500), bank, freeQuota, 10, allowedQuotas);
+        String username = "bob";
+        Natural desiredQuota = new Natural(5 * GIGABYTE);
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser(username, now);
+        Assert.assertTrue("Free quota", global.getCurrentQuota(username) == freeQuota.val);
+        global.setDesiredQuota(username, desiredQuota, now);
+        for (int i=0; i < 5; i++)
+            Assert.assertTrue("Correct quota", global.getCurrentQuota(username) == desiredQuota.val + freeQuota.val);
+        Assert.assertTrue("Cache hits", store.getHits() >= 4);
+
+        global.processAll(now.plusMonths(1).plusDays(1));
+        Assert.assertTrue("Renewed", global.getCurrentQuota(username) == desiredQuota.val + freeQuota.val);
+        Assert.assertTrue("Two payments", bank.getPayments().size() == 2);
+
+        for (int i=0; i < 3; i++)
+            global.ensureUser("user" + i, now);
+        for (int i=0; i < 3; i++)
+            global.getCurrentQuota("user" + i);
+        Assert.assertTrue("Bounded", store.size() == 2);
+        Assert.assertTrue("Evicted", store.getEvictions() > 0);
+    }
+
+    @Test
+    public void cachedStoreSeesOtherWriters() throws Exception {
+        SqlPaymentStore sql = new SqlPaymentStore(Builder.buildEphemeralSqlite(), false);
+        CachingPaymentStore store = new CachingPaymentStore(sql, 10, Duration.ofMillis(200));
+        String username = "bob";
+        store.ensureUser(username, freeQuota, LocalDateTime.now());
+        Assert.assertTrue("Free quota", store.getFreeQuota(username).equals(freeQuota));
+
+        // e.g. LoadPaymentStore run against the same database
+        sql.setFreeQuota(username, Natural.of(GIGABYTE));
+        Assert.assertTrue("Cached", store.getFreeQuota(username).equals(freeQuota));
+        Thread.sleep(300);
+        Assert.assertTrue("Expired", store.getFreeQuota(username).equals(Natural.of(GIGABYTE)));
+    }
+
+    @Test
+    public void bulkImport() {
+        SqlPaymentStore store = new SqlPaymentStore(Builder.buildEphemeralSqlite(), false);
+        LocalDateTime now = LocalDateTime.now();
+        store.ensureUser("user7", freeQuota, now);
+        long added = store.ensureUsers(IntStream.range(0, 2500)
+                .mapToObj(i -> new Pair<>("user" + i, Natural.of(MEGABYTE))), now);
+        Assert.assertTrue("Added new users", added == 2499);
+        Assert.assertTrue("Existing user unchanged", store.getFreeQuota("user7").equals(freeQuota));
+        Assert.assertTrue("Idempotent", store.ensureUsers(Stream.of(new Pair<>("user1", Natural.ZERO)), now) == 0);
+        store.ensureUser("user8", freeQuota, now);
+        Assert.assertTrue("User count", store.userCount() == 2500);
+
+        long updated = store.setFreeQuotas(Stream.of(new Pair<>("user7", Natural.ZERO), new Pair<>("nobody", Natural.ZERO)));
+        Assert.assertTrue("Updated existing users", updated == 1);
+        Assert.assertTrue("Free quota set", store.getFreeQuota("user7").equals(Natural.ZERO));
+    }
+
+    @Test
+    public void slowPaymentDoesntBlockOtherUsers() throws Exception {
+        CountDownLatch paymentStarted = new CountDownLatch(1);
+        CountDownLatch releasePayment = new CountDownLatch(1);
+        AcceptAll bank = new AcceptAll() {
+            @Override
+            public PaymentResult takePayment(CustomerResult cus,
+                                             Natural cents,
+                                             String currency,
+                                             LocalDateTime now,
+                                             Natural forQuota,
+                                             String reference) {
+                paymentStarted.countDown();
+                try {
+                    releasePayment.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.takePayment(cus, cents, currency, now, forQuota, reference);
+            }
+        };
+        PaymentState global = buildPaymentState(bank);
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser("alice", now);
+        global.ensureUser("bob", now);
+        CompletableFuture<Void> payment = CompletableFuture.runAsync(() ->
+                global.setDesiredQuota("alice", new Natural(5 * GIGABYTE), now));
+        paymentStarted.await();
+
+        long bobQuota = CompletableFuture.supplyAsync(() -> global.getCurrentQuota("bob")).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue("Read other user's quota during payment", bobQuota == freeQuota.val);
+        CompletableFuture.runAsync(() -> global.setDesiredQuota("bob", Natural.of(MEGABYTE), now)).get(5, TimeUnit.SECONDS);
+
+        releasePayment.countDown();
+        payment.get(5, TimeUnit.SECONDS);
+        Assert.assertTrue("Paid", global.getCurrentQuota("alice") == 5 * GIGABYTE + freeQuota.val);
+    }
+
+    @Test
+    public void parallelBillingRun() {
+        AcceptAll bank = new AcceptAll();
+        Bank limited = new RateLimitedBank(bank, new TokenBucket(1000, 10));
+        PaymentState global = new PaymentState(new SqlPaymentStore(Builder.buildEphemeralSqlite(), false),
+                new LinearPricer(new Natural(GIGABYTE / 100)), new Natural(500), limited, freeQuota, 100, allowedQuotas, 8);
+        LocalDateTime now = LocalDateTime.now();
+        int users = 50;
+        for (int i=0; i < users; i++)
+            global.setDesiredQuota("user" + i, new Natural(5 * GIGABYTE), now);
+        bank.failNext("Card Rejected!");
+
+        Triple<Integer, Integer, Integer> res = global.processAll(now.plusMonths(1).plusDays(1));
+        Assert.assertTrue("Successes", res.left == users - 1);
+        Assert.assertTrue("Failures", res.middle == 1);
+        Assert.assertTrue("Exceptions", res.right == 0);
+        Assert.assertTrue("Payments", bank.getPayments().size() == 2 * users);
+
+        Triple<Integer, Integer, Integer> retry = global.processAll(now.plusMonths(1).plusDays(2));
+        Assert.assertTrue("Only retry failed user", retry.left == 1 && bank.getPayments().size() == 2 * users + 1);
+    }
+
+    @Test
+    public void decoratedSyncBankDoesntBlockCaller() throws Exception {
+        Set<Thread> bankThreads = ConcurrentHashMap.newKeySet();
+        AcceptAll bank = new AcceptAll() {
+            @Override
+            public PaymentResult takePayment(CustomerResult cus,
+                                             Natural cents,
+                                             String currency,
+                                             LocalDateTime now,
+                                             Natural forQuota,
+                                             String reference) {
+                bankThreads.add(Thread.currentThread());
+                return super.takePayment(cus, cents, currency, now, forQuota, reference);
+            }
+        };
+        AsyncBank decorated = new MetricsBank(new RateLimitedBank(bank, new TokenBucket(2, 1)), new MetricsRegistry());
+        CustomerResult cus = new CustomerResult("cus_1");
+        long start = System.nanoTime();
+        List<CompletableFuture<PaymentResult>> payments = IntStream.range(0, 3)
+                .mapToObj(i -> decorated.takePaymentAsync(cus, Natural.of(500), "gbp", LocalDateTime.now(),
+                        Natural.of(5 * GIGABYTE), UUID.randomUUID().toString()))
+                .collect(Collectors.toList());
+        Assert.assertTrue("Rate limit didn't block caller", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        for (CompletableFuture<PaymentResult> payment : payments)
+            Assert.assertTrue("Paid", payment.get(5, TimeUnit.SECONDS).isSuccessful());
+        Assert.assertTrue("Rate limited", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        Assert.assertFalse("Bank called off the caller's thread", bankThreads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void blockingBankCallsShareOneBoundedExecutor() throws Exception {
+        Set<Thread> bankThreads = ConcurrentHashMap.newKeySet();
+        AcceptAll bank = new AcceptAll() {
+            @Override
+            public PaymentResult takePayment(CustomerResult cus,
+                                             Natural cents,
+                                             String currency,
+                                             LocalDateTime now,
+                                             Natural forQuota,
+                                             String reference) {
+                bankThreads.add(Thread.currentThread());
+                return super.takePayment(cus, cents, currency, now, forQuota, reference);
+            }
+        };
+        ExecutorService bankExecutor = AsyncBank.newExecutor(2);
+        try {
+            CircuitBreakerBank breaker = new CircuitBreakerBank(bank, 5, Duration.ofMinutes(1), bankExecutor);
+            AsyncBank decorated = new MetricsBank(new RateLimitedBank(breaker, new TokenBucket(1000, 1000), bankExecutor),
+                    new MetricsRegistry(), bankExecutor);
+            CustomerResult cus = new CustomerResult("cus_1");
+            List<CompletableFuture<PaymentResult>> payments = IntStream.range(0, 20)
+                    .mapToObj(i -> decorated.takePaymentAsync(cus, Natural.of(500), "gbp", LocalDateTime.now(),
+                            Natural.of(5 * GIGABYTE), UUID.randomUUID().toString()))
+                    .collect(Collectors.toList());
+            for (CompletableFuture<PaymentResult> payment : payments)
+                Assert.assertTrue("Paid", payment.get(5, TimeUnit.SECONDS).isSuccessful());
+            Assert.assertTrue("Bounded bank threads", bankThreads.size() <= 2);
+        } finally {
+            bankExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void renewOnExpiry() throws Exception {
+        AcceptAll bank = new AcceptAll();
+        SqlPaymentStore store = new SqlPaymentStore(Builder.buildEphemeralSqlite(), false);
+        PaymentState global = new PaymentState(store, new LinearPricer(new Natural(GIGABYTE / 100)),
+                new Natural(500), bank, freeQuota, 10, allowedQuotas);
+        String username = "bob";
+        LocalDateTime now = LocalDateTime.now();
+        global.setDesiredQuota(username, new Natural(5 * GIGABYTE), now);
+        store.setQuotaExpiry(username, LocalDateTime.now().plusSeconds(1));
+
+        BillingScheduler scheduler = new BillingScheduler(global, LocalTime.now().minusHours(1), Duration.ofMinutes(1),
+                Duration.ofMinutes(1), 1);
+        scheduler.start();
+        try {
+            long end = System.currentTimeMillis() + 10_000;
+            while (bank.getPayments().size() < 2 && System.currentTimeMillis() < end)
+                Thread.sleep(100);
+        } finally {
+            scheduler.stop();
+        }
+        Assert.assertTrue("Renewed at expiry", bank.getPayments().size() == 2);
+        Assert.assertTrue("Expiry extended", store.getQuotaExpiry(username).isAfter(now.plusDays(27)));
+    }
+
+    @Test
+    public void slowDailyRunDoesNotHoldUpRenewals() throws Exception {
+        Assume.assumeTrue("Daily run would be tomorrow", LocalTime.now().isBefore(LocalTime.of(23, 59, 50)));
+        AcceptAll bank = new AcceptAll();
+        CountDownLatch dailyRunStarted = new CountDownLatch(1);
+        CountDownLatch finishDailyRun = new CountDownLatch(1);
+        SqlPaymentStore store = new SqlPaymentStore(Builder.buildEphemeralSqlite(), false) {
+            @Override
+            public List<String> getUsersToProcess(LocalDateTime now) {
+                dailyRunStarted.countDown();
+                try {
+                    finishDailyRun.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return Collections.emptyList();
+            }
+        };
+        PaymentState global = new PaymentState(store, new LinearPricer(new Natural(GIGABYTE / 100)),
+                new Natural(500), bank, freeQuota, 10, allowedQuotas);
+        String username = "bob";
+        LocalDateTime now = LocalDateTime.now();
+        global.setDesiredQuota(username, new Natural(5 * GIGABYTE), now);
+        store.setQuotaExpiry(username, LocalDateTime.now().plusSeconds(2));
+
+        BillingScheduler scheduler = new BillingScheduler(global, LocalTime.now().plusSeconds(1), Duration.ofMinutes(1),
+                Duration.ofMinutes(1), 1);
+        scheduler.start();
+        try {
+            Assert.assertTrue("Daily run started", dailyRunStarted.await(5, TimeUnit.SECONDS));
+            long end = System.currentTimeMillis() + 5_000;
+            while (bank.getPayments().size() < 2 && System.currentTimeMillis() < end)
+                Thread.sleep(100);
+            Assert.assertTrue("Renewed during the daily run", bank.getPayments().size() == 2);
+        } finally {
+            finishDailyRun.countDown();
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void ttlCacheCoalescesLookups() {
+        AtomicInteger loads = new AtomicInteger(0);
+        CompletableFuture<String> slowLoad = new CompletableFuture<>();
+        TtlCache<Integer, String> cache = new TtlCache<>(2, Duration.ofHours(1), k -> {
+            loads.incrementAndGet();
+            return k == 1 ? slowLoad : CompletableFuture.completedFuture("user" + k);
+        });
+        CompletableFuture<String> first = cache.get(1);
+        CompletableFuture<String> second = cache.get(1);
+        Assert.assertTrue("One load", loads.get() == 1 && cache.getCoalesced() == 1);
+        slowLoad.complete("user1");
+        Assert.assertTrue("Same result", first.join().equals("user1") && second.join().equals("user1"));
+
+        Assert.assertTrue("Hit", cache.get(1).join().equals("user1") && cache.getHits() == 1);
+        cache.get(2).join();
+        cache.get(3).join();
+        Assert.assertTrue("Bounded", cache.size() == 2);
+        cache.get(1).join();
+        Assert.assertTrue("Evicted least recently used", loads.get() == 4);
+    }
+
+    @Test
+    public void signedTimeAuth() {
+        SigningKeyPair signer = SigningKeyPair.random(new SafeRandomJava(), new Ed25519Java());
+        AtomicInteger keyFetches = new AtomicInteger(0);
+        ContentAddressedStorage dht = (ContentAddressedStorage) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ContentAddressedStorage.class}, (proxy, m, args) -> {
+                    if (! m.getName().equals("getSigningKey"))
+                        throw new UnsupportedOperationException(m.getName());
+                    keyFetches.incrementAndGet();
+                    return CompletableFuture.completedFuture(Optional.of(signer.publicSigningKey));
+                });
+        TimeLimitedAuth auth = new TimeLimitedAuth(dht);
+        PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+
+        long now = System.currentTimeMillis();
+        auth.isAllowedTime(signer.signMessage(new CborObject.CborLong(now).serialize()), owner);
+        byte[] signed = signer.signMessage(new CborObject.CborLong(now + 1).serialize());
+        auth.isAllowedTime(signed, owner);
+        Assert.assertTrue("Key cached", keyFetches.get() == 1);
+        try {
+            auth.isAllowedTime(signed, owner);
+            Assert.fail("Replayed auth accepted");
+        } catch (IllegalStateException e) {}
+        try {
+            auth.isAllowedTime(signer.signMessage(new CborObject.CborLong(now - 600_000).serialize()), owner);
+            Assert.fail("Stale auth accepted");
+        } catch (IllegalStateException e) {}
+        Assert.assertTrue("Remembered", auth.seenCount() == 2);
+    }
+
+    @Test
+    public void metrics() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        PaymentStore store = new MetricsPaymentStore(new SqlPaymentStore(Builder.buildEphemeralSqlite(), false), metrics);
+        PaymentState global = new PaymentState(store, new LinearPricer(new Natural(GIGABYTE / 100)),
+                new Natural(500), new MetricsBank(new AcceptAll(), metrics), freeQuota, 10, allowedQuotas);
+        LocalDateTime now = LocalDateTime.now();
+        global.ensureUser("bob", now);
+        global.setDesiredQuota("bob", new Natural(5 * GIGABYTE), now);
+
+        String text = metrics.toPrometheus();
+        Assert.assertTrue("Bank calls", text.contains("bank_call_seconds_count{op=\"takePayment\"} 1\n"));
+        Assert.assertTrue("Store buckets", text.contains("payment_store_seconds_bucket{op=\"getUserState\",le=\"60\"} "));
+        Assert.assertTrue("Cumulative", text.contains("bank_call_seconds_bucket{op=\"takePayment\",le=\"+Inf\"} 1\n"));
+        Assert.assertTrue("Nothing in flight", text.contains("bank_calls_in_flight{op=\"takePayment\"} 0\n"));
+
+        Histogram latency = new Histogram();
+        for (int i=1; i <= 1000; i++)
+            latency.recordNanos(i * 1_000_000L);
+        Assert.assertTrue("p50", Math.abs(latency.quantileSeconds(0.5) - 0.5) < 0.5 * 0.07);
+        Assert.assertTrue("p999", Math.abs(latency.quantileSeconds(0.999) - 0.999) < 0.999 * 0.07);
+        long[] buckets = latency.cumulativeCounts(new double[]{0.1, 0.5, 2});
+        Assert.assertTrue("Buckets", buckets[0] <= 100 && buckets[1] >= buckets[0] && buckets[2] == 1000 && buckets[3] == 1000);
+    }
+
+    @Test
+    public void parseStripeResponse() {
+        StripeJson.PaymentIntent charge = StripeJson.parsePaymentIntent(example_payment_response);
+        Assert.assertTrue("id", charge.id.equals("ch_1F2lzpKU7V27QSznGqy1VLhY"));
+        Assert.assertTrue("status", charge.status.equals("succeeded"));
+        Assert.assertTrue("No error", charge.error().isEmpty());
+
+        JsonReader reader = new JsonReader("{\"a\": [1, -2.5e3, {\"b\": null}], \"s\": \"q\\\"\\u00e9\", \"n\": -9223372036854775807}");
+        reader.beginObject();
+        Assert.assertTrue("name", reader.nextName().equals("a"));
+        reader.skipValue();
+        Assert.assertTrue("name", reader.nextName().equals("s"));
+        Assert.assertTrue("escapes", reader.nextString().equals("q\"\u00e9"));
+        Assert.assertTrue("name", reader.nextName().equals("n"));
+        Assert.assertTrue("long", reader.nextLong() == -9223372036854775807L);
+        Assert.assertFalse("end", reader.hasNext());
+        reader.endObject();
+        Assert.assertTrue("done", reader.peek() == JsonReader.Token.END_DOCUMENT);
+    }
+
     private static final String example_payment_response = "{\n" +
             "  \"id\": \"ch_1F2lzpKU7V27QSznGqy1VLhY\",\n" +
             "  \"object\": \"charge\",\n" +
@@ -0,0 +1,325 @@
+package peergos.payment.tests;
+
+import org.junit.*;
+import peergos.payment.*;
+import peergos.payment.util.*;
+import peergos.shared.util.Triple;
+
+import java.net.*;
+import java.net.http.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class StripeProcessorTests {
+    private static final long GIGABYTE = 1024*1024*1024L;
+
+    private FakeStripe stripe;
+
+    @Before
+    public void startStripe() throws Exception {
+        stripe = new FakeStripe(new InetSocketAddress("localhost", 0));
+        stripe.start();
+    }
+
+    @After
+    public void stopStripe() {
+        stripe.stop();
+    }
+
+    private StripeProcessor buildProcessor(int maxRetries) {
+        return new StripeProcessor("sk_test", stripe.getUrl(), Duration.ofSeconds(5), Duration.ofSeconds(5),
+                StripeProcessor.DEFAULT_CARD_CACHE_TTL, Optional.empty(), maxRetries);
+    }
+
+    private static PaymentResult pay(StripeProcessor bank, CustomerResult cus, long cents) {
+        return bank.takePayment(cus, Natural.of(cents), "gbp", LocalDateTime.now(), Natural.of(5 * GIGABYTE),
+                UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void renewalUsesCachedCard() {
+        StripeProcessor bank = buildProcessor(0);
+        CustomerResult cus = bank.createCustomer("bob");
+        IntentResult intent = bank.setupIntent(cus);
+        Assert.assertTrue("Client secret", intent.clientSecret != null);
+        stripe.addCard(cus.id, "bob@example.com");
+
+        PaymentResult first = pay(bank, cus, 500);
+        Assert.assertTrue("Paid", first.isSuccessful());
+        Assert.assertTrue("Email set", stripe.getEmail(cus.id).equals(Optional.of("bob@example.com")));
+        Assert.assertTrue("Listed cards", stripe.requestCount("/v1/payment_methods") == 1);
+
+        PaymentResult second = pay(bank, cus, 500);
+        Assert.assertTrue("Paid", second.isSuccessful());
+        Assert.assertTrue("Card cached", stripe.requestCount("/v1/payment_methods") == 1);
+        Assert.assertTrue("Email not set again", stripe.requestCount("/v1/customers/" + cus.id) == 1);
+        Assert.assertTrue("Charged twice", stripe.totalCharged() == 1000);
+
+        // handing out a new setup intent means the customer may be about to add a new card
+        bank.setupIntent(cus);
+        bank.invalidateCard(cus.id);
+        stripe.addCard(cus.id, "bob@example.org");
+        Assert.assertTrue("Paid", pay(bank, cus, 500).isSuccessful());
+        Assert.assertTrue("Listed cards again", stripe.requestCount("/v1/payment_methods") == 2);
+        Assert.assertTrue("New email set", stripe.getEmail(cus.id).equals(Optional.of("bob@example.org")));
+    }
+
+    @Test
+    public void cachedCardExpires() throws Exception {
+        Assert.assertTrue("Card outlives a monthly renewal",
+                StripeProcessor.DEFAULT_CARD_CACHE_TTL.compareTo(Duration.ofDays(31)) > 0);
+        StripeProcessor bank = new StripeProcessor("sk_test", stripe.getUrl(), Duration.ofSeconds(5), Duration.ofSeconds(5),
+                Duration.ofMillis(500), Optional.empty(), 0);
+        CustomerResult cus = bank.createCustomer("bob");
+        stripe.addCard(cus.id, "bob@example.com");
+
+        Assert.assertTrue("Paid", pay(bank, cus, 500).isSuccessful());
+        Assert.assertTrue("Paid", pay(bank, cus, 500).isSuccessful());
+        Assert.assertTrue("Card cached", stripe.requestCount("/v1/payment_methods") == 1 && bank.cachedCards() == 1);
+
+        // a card added since is picked up once the cached one expires
+        stripe.addCard(cus.id, "bob@example.org");
+        Thread.sleep(600);
+        Assert.assertTrue("Paid", pay(bank, cus, 500).isSuccessful());
+        Assert.assertTrue("Listed cards again", stripe.requestCount("/v1/payment_methods") == 2);
+        Assert.assertTrue("New email set", stripe.getEmail(cus.id).equals(Optional.of("bob@example.org")));
+        Assert.assertTrue("Charged three times", stripe.totalCharged() == 1500);
+    }
+
+    @Test
+    public void connectionsReused() {
+        HttpClient client = StripeProcessor.buildClient(Duration.ofSeconds(5));
+        StripeProcessor first = new StripeProcessor("sk_test", stripe.getUrl(), client, Duration.ofSeconds(5),
+                StripeProcessor.DEFAULT_CARD_CACHE_TTL, Optional.empty(), 0);
+        StripeProcessor second = new StripeProcessor("sk_test", stripe.getUrl(), client, Duration.ofSeconds(5),
+                StripeProcessor.DEFAULT_CARD_CACHE_TTL, Optional.empty(), 0);
+        for (int i=0; i < 10; i++) {
+            first.createCustomer("alice" + i);
+            second.createCustomer("bob" + i);
+        }
+        Assert.assertTrue("All requests sent", stripe.requestCount("/v1/customers") == 20);
+        Assert.assertTrue("One connection", stripe.connectionCount() == 1);
+    }
+
+    @Test
+    public void declinedPayment() {
+        StripeProcessor bank = buildProcessor(0);
+        CustomerResult cus = bank.createCustomer("bob");
+        stripe.addCard(cus.id, "bob@example.com");
+        stripe.declineNextPayment("Your card was declined.");
+
+        PaymentResult declined = pay(bank, cus, 500);
+        Assert.assertFalse("Declined", declined.isSuccessful());
+        Assert.assertTrue("Decline message", declined.failureError.equals(Optional.of("Your card was declined.")));
+
+        // the card cache is dropped after a failure
+        Assert.assertTrue("Paid", pay(bank, cus, 500).isSuccessful());
+        Assert.assertTrue("Listed cards again", stripe.requestCount("/v1/payment_methods") == 2);
+    }
+
+    @Test
+    public void noCard() {
+        StripeProcessor bank = buildProcessor(0);
+        CustomerResult cus = bank.createCustomer("bob");
+        try {
+            pay(bank, cus, 500);
+            Assert.fail("Paid without a card");
+        } catch (IllegalStateException e) {
+            Assert.assertFalse("Not an outage", BankUnavailableException.isUnavailable(e));
+        }
+    }
+
+    @Test
+    public void retryRateLimited() {
+        StripeProcessor bank = buildProcessor(3);
+        CustomerResult cus = bank.createCustomer("bob");
+        stripe.addCard(cus.id, "bob@example.com");
+
+        stripe.rateLimitNext(2);
+        Assert.assertTrue("Paid", pay(bank, cus, 500).isSuccessful());
+        Assert.assertTrue("Retried", bank.getRetriedCalls() == 2);
+        Assert.assertTrue("Charged once", stripe.totalCharged() == 500);
+    }
+
+    @Test
+    public void retriesAreLimited() {
+        StripeProcessor bank = buildProcessor(2);
+        stripe.failNext(10);
+        try {
+            bank.createCustomer("bob");
+            Assert.fail("Created customer during outage");
+        } catch (BankUnavailableException e) {}
+        Assert.assertTrue("Retried twice", bank.getRetriedCalls() == 2);
+        Assert.assertTrue("Three requests", stripe.requestCount("/v1/customers") == 3);
+    }
+
+    @Test
+    public void retryAfterIsHonoured() {
+        StripeProcessor bank = buildProcessor(1);
+        stripe.setInjectedErrorHeaders(Map.of("Retry-After", "1"));
+        stripe.rateLimitNext(1);
+        long start = System.nanoTime();
+        Assert.assertTrue("Created", bank.createCustomer("bob").id != null);
+        Assert.assertTrue("Waited for Retry-After", System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+        Assert.assertTrue("Retried", bank.getRetriedCalls() == 1);
+    }
+
+    @Test
+    public void stripeShouldRetryOverridesStatus() {
+        StripeProcessor bank = buildProcessor(3);
+        stripe.setInjectedErrorHeaders(Map.of("Stripe-Should-Retry", "false"));
+        stripe.failNext(1);
+        try {
+            bank.createCustomer("bob");
+            Assert.fail("Created customer during outage");
+        } catch (BankUnavailableException e) {}
+        Assert.assertTrue("Not retried", bank.getRetriedCalls() == 0);
+        Assert.assertTrue("One request", stripe.requestCount("/v1/customers") == 1);
+    }
+
+    @Test
+    public void retryDelayIsCapped() {
+        long cap = StripeProcessor.MAX_RETRY_DELAY.toNanos();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long delay = StripeProcessor.retryDelayNanos(Optional.empty(), attempt);
+            Assert.assertTrue("Backoff within cap", delay > 0 && delay <= cap);
+        }
+        long first = StripeProcessor.retryDelayNanos(Optional.empty(), 0);
+        Assert.assertTrue("First retry is quick", first <= TimeUnit.SECONDS.toNanos(1));
+        Assert.assertTrue("Backs off to the cap", StripeProcessor.retryDelayNanos(Optional.empty(), 50) >= cap / 2);
+        Assert.assertTrue("Retry-After used",
+                StripeProcessor.retryDelayNanos(Optional.of("2"), 0) == TimeUnit.SECONDS.toNanos(2));
+        Assert.assertTrue("Retry-After capped", StripeProcessor.retryDelayNanos(Optional.of("3600"), 0) == cap);
+        Assert.assertTrue("Invalid Retry-After ignored",
+                StripeProcessor.retryDelayNanos(Optional.of("soon"), 0) <= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void rateLimiterDelaysRequests() {
+        StripeProcessor bank = new StripeProcessor("sk_test", stripe.getUrl(), Duration.ofSeconds(5), Duration.ofSeconds(5),
+                StripeProcessor.DEFAULT_CARD_CACHE_TTL, Optional.of(new TokenBucket(4, 1)), 0);
+        long start = System.nanoTime();
+        for (int i=0; i < 5; i++)
+            bank.createCustomer("bob" + i);
+        Assert.assertTrue("Throttled after the burst", bank.getThrottledCalls() == 4);
+        Assert.assertTrue("Rate limited", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        Assert.assertTrue("All sent", stripe.requestCount("/v1/customers") == 5);
+    }
+
+    @Test
+    public void serverErrorsAreUnavailable() {
+        StripeProcessor bank = buildProcessor(1);
+        stripe.failNext(2);
+        try {
+            bank.createCustomer("bob");
+            Assert.fail("Created customer during outage");
+        } catch (BankUnavailableException e) {}
+        Assert.assertTrue("Retried once", bank.getRetriedCalls() == 1);
+        Assert.assertTrue("Recovered", bank.createCustomer("bob").id != null);
+    }
+
+    @Test
+    public void prewarmedSetupIntent() throws Exception {
+        StripeProcessor bank = buildProcessor(0);
+        SetupIntentPool pool = new SetupIntentPool(10, SetupIntentPool.DEFAULT_TTL, bank::invalidateCard);
+        SqlPaymentStore store = new SqlPaymentStore(Builder.buildEphemeralSqlite(), false);
+        PaymentState state = new PaymentState(store, new LinearPricer(Natural.of(GIGABYTE / 100)), Natural.of(500), bank,
+                Natural.ZERO, 10, Stream.of(0L, 5 * GIGABYTE).map(Natural::of).collect(Collectors.toSet()), 1, pool);
+        String username = "bob";
+        state.ensureUser(username, LocalDateTime.now());
+
+        // a free user viewing the account page doesn't get a customer or an intent
+        Assert.assertTrue("No secret", state.getPaymentProperties(username, false, "url").clientSecret.isEmpty());
+        Assert.assertTrue("Nothing prepared", pool.size() == 0 && stripe.requestCount("/v1/customers") == 0);
+
+        // opening the card form creates them on demand
+        Assert.assertTrue("Secret", state.getPaymentProperties(username, true, "url").clientSecret.isPresent());
+        Assert.assertTrue("Intent created", stripe.setupIntentsCreated() == 1);
+        CustomerResult cus = store.getCustomer(username);
+        stripe.addCard(cus.id, "bob@example.com");
+        state.setDesiredQuota(username, Natural.of(5 * GIGABYTE), LocalDateTime.now());
+        Assert.assertTrue("Card cached", bank.cachedCards() == 1);
+
+        // once they pay, viewing prepares an intent in the background, reusing the one they never confirmed
+        state.getPaymentProperties(username, false, "url");
+        awaitPooled(pool);
+        Assert.assertTrue("Intent reused", stripe.setupIntentsCreated() == 1);
+        Assert.assertTrue("Card still cached", bank.cachedCards() == 1);
+
+        // handing an intent out drops the card we charge, as a new one may be added
+        Assert.assertTrue("Secret", state.getPaymentProperties(username, true, "url").clientSecret.isPresent());
+        Assert.assertTrue("From pool", pool.getHits() == 1 && stripe.setupIntentsCreated() == 1);
+        Assert.assertTrue("Card dropped", bank.cachedCards() == 0);
+
+        // a confirmed intent isn't reused
+        stripe.confirmSetupIntents(cus.id);
+        state.getPaymentProperties(username, false, "url");
+        awaitPooled(pool);
+        Assert.assertTrue("New intent", stripe.setupIntentsCreated() == 2);
+    }
+
+    private static void awaitPooled(SetupIntentPool pool) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5_000;
+        while (pool.size() == 0 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Assert.assertTrue("Pooled", pool.size() == 1);
+    }
+
+    @Test
+    public void timedOutPaymentReconciledWithoutWebhook() throws Exception {
+        stripe.setAutoConfirmSetupIntents(true);
+        StripeProcessor bank = new StripeProcessor("sk_test", stripe.getUrl(), Duration.ofSeconds(5), Duration.ofSeconds(1),
+                StripeProcessor.DEFAULT_CARD_CACHE_TTL, Optional.empty(), 0);
+        PaymentState state = new PaymentState(new SqlPaymentStore(Builder.buildEphemeralSqlite(), false),
+                new LinearPricer(Natural.of(GIGABYTE / 100)), Natural.of(500), bank, Natural.ZERO, 10,
+                Stream.of(0L, 5 * GIGABYTE).map(Natural::of).collect(Collectors.toSet()), 1);
+        String username = "bob";
+        LocalDateTime now = LocalDateTime.now();
+        state.ensureUser(username, now);
+        state.generateClientSecret(username);
+        state.setDesiredQuota(username, Natural.of(5 * GIGABYTE), now);
+        Assert.assertTrue("Paid", state.getCurrentQuota(username) == 5 * GIGABYTE);
+        Assert.assertTrue("Not found", bank.findPayment(UUID.randomUUID().toString()).isEmpty());
+
+        // the renewal goes through at Stripe, but we time out waiting for the response
+        stripe.setLatency(Duration.ofMillis(1500));
+        LocalDateTime renewal = now.plusMonths(1).plusDays(1);
+        Assert.assertTrue("Pending", state.processAll(renewal).middle == 1);
+        stripe.setLatency(Duration.ZERO);
+        long end = System.currentTimeMillis() + 5_000;
+        while (stripe.totalCharged() < 1000 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+
+        Triple<Integer, Integer, Integer> reconciled = state.reconcilePendingPayments(renewal.plusHours(2));
+        Assert.assertTrue("Found the charge", reconciled.left == 1);
+        Assert.assertTrue("Searched", stripe.requestCount("/v1/payment_intents/search") == 2);
+        Assert.assertTrue("Charged once", stripe.totalCharged() == 1000);
+        Assert.assertTrue("Nothing left pending", state.reconcilePendingPayments(renewal.plusDays(1)).left == 0);
+    }
+
+    @Test
+    public void billingRun() {
+        stripe.setAutoConfirmSetupIntents(true);
+        stripe.setLatency(Duration.ofMillis(20));
+        StripeProcessor bank = buildProcessor(3);
+        Set<Natural> allowedQuotas = Stream.of(0L, 5 * GIGABYTE).map(Natural::of).collect(Collectors.toSet());
+        int users = 20;
+        PaymentState state = new PaymentState(new SqlPaymentStore(Builder.buildEphemeralSqlite(), false),
+                new LinearPricer(Natural.of(GIGABYTE / 100)), Natural.of(500), bank, Natural.ZERO, users,
+                allowedQuotas, 8);
+        LocalDateTime now = LocalDateTime.now();
+        for (int i=0; i < users; i++) {
+            String username = "user" + i;
+            state.ensureUser(username, now);
+            state.generateClientSecret(username);
+            state.setDesiredQuota(username, Natural.of(5 * GIGABYTE), now);
+        }
+        Assert.assertTrue("Initial payments", stripe.totalCharged() == users * 500);
+
+        Triple<Integer, Integer, Integer> renewed = state.processAll(now.plusMonths(1).plusDays(1));
+        Assert.assertTrue("All renewed", renewed.left == users);
+        Assert.assertTrue("Renewal payments", stripe.totalCharged() == 2 * users * 500);
+    }
+}
@@ -0,0 +1,46 @@
+package peergos.payment.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * How to run HTTP handlers. A fixed pool caps concurrency at its size, whereas cached and virtual threads start a thread
+ * per request, so concurrency is only limited by admission control.
+ */
+public enum ExecutorMode {
+    FIXED,
+    CACHED,
+    VIRTUAL;
+
+    public static ExecutorMode parse(String mode) {
+        try {
+            return valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown executor mode: " + mode + ", expected fixed, cached or virtual");
+        }
+    }
+
+    public ExecutorService build(int threads, String name) {
+        switch (this) {
+            case FIXED:
+                return Executors.newFixedThreadPool(threads, namedThreads(name));
+            case CACHED:
+                return Executors.newCachedThreadPool(namedThreads(name));
+            case VIRTUAL:
+                // looked up reflectively as we still compile for Java 11
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Virtual threads need Java 21 or later, but this is Java " +
+                            System.getProperty("java.version"), e);
+                }
+            default:
+                throw new IllegalStateException("Unknown executor mode: " + this);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger count = new AtomicInteger(0);
+        return r -> new Thread(r, name + "-" + count.incrementAndGet());
+    }
+}
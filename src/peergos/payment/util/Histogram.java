@@ -0,0 +1,102 @@
+package peergos.payment.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts durations in buckets which grow exponentially, each split into 16 linear sub-buckets, so quantiles are within
+ * about 6% of the true value. Recording is lock free and doesn't allocate.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values are recorded in microseconds, so this covers more than a day
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sumNanos = new AtomicLong(0);
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value in microseconds which goes in the given bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Record the time since startNanos, from System.nanoTime
+     */
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.get() / 1e9;
+    }
+
+    /**
+     * @param upperBoundsSeconds in increasing order
+     * @return the number of values recorded at or below each bound, followed by the total, from one pass over the
+     * counts so they are consistent with each other
+     */
+    public long[] cumulativeCounts(double[] upperBoundsSeconds) {
+        long[] res = new long[upperBoundsSeconds.length + 1];
+        long seen = 0;
+        int i = 0;
+        for (int b=0; b < upperBoundsSeconds.length; b++) {
+            double boundMicros = upperBoundsSeconds[b] * 1e6;
+            while (i < BUCKETS && upperBound(i) <= boundMicros)
+                seen += counts.get(i++);
+            res[b] = seen;
+        }
+        while (i < BUCKETS)
+            seen += counts.get(i++);
+        res[upperBoundsSeconds.length] = seen;
+        return res;
+    }
+
+    /**
+     * @return an upper bound for the given quantile in seconds, or 0 if nothing has been recorded
+     */
+    public double quantileSeconds(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i=0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i=0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return upperBound(i) / 1e6;
+        }
+        return upperBound(BUCKETS - 1) / 1e6;
+    }
+}
@@ -0,0 +1,318 @@
+package peergos.payment.util;
+
+/**
+ * A pull parser for JSON, which reads one token at a time from a string, so callers can pick out the fields they need
+ * and skip everything else without building a tree. Skipped values are never materialised, and numbers are parsed
+ * directly from the characters.
+ */
+public class JsonReader {
+
+    public enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    private final String json;
+    private int pos = 0;
+    // whether each open container is an object (true) or an array
+    private boolean[] containers = new boolean[16];
+    private int depth = 0;
+    private boolean nameNext = false;
+
+    public JsonReader(String json) {
+        this.json = json;
+    }
+
+    private IllegalStateException error(String message) {
+        return new IllegalStateException(message + " at position " + pos + " in JSON");
+    }
+
+    /**
+     *  Skip whitespace and any separating comma, which is implied by the position of the next token
+     */
+    private char skipSeparators() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == ',' || Character.isWhitespace(c))
+                pos++;
+            else
+                return c;
+        }
+        return 0;
+    }
+
+    private void push(boolean isObject) {
+        if (depth == containers.length) {
+            boolean[] bigger = new boolean[depth * 2];
+            System.arraycopy(containers, 0, bigger, 0, depth);
+            containers = bigger;
+        }
+        containers[depth++] = isObject;
+        nameNext = isObject;
+    }
+
+    private void pop() {
+        if (depth == 0)
+            throw error("Unbalanced close");
+        depth--;
+    }
+
+    private void afterValue() {
+        nameNext = depth > 0 && containers[depth - 1];
+    }
+
+    public Token peek() {
+        char c = skipSeparators();
+        switch (c) {
+            case 0: return Token.END_DOCUMENT;
+            case '{': return Token.BEGIN_OBJECT;
+            case '}': return Token.END_OBJECT;
+            case '[': return Token.BEGIN_ARRAY;
+            case ']': return Token.END_ARRAY;
+            case '"': return nameNext ? Token.NAME : Token.STRING;
+            case 't':
+            case 'f': return Token.BOOLEAN;
+            case 'n': return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                    return Token.NUMBER;
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private void expect(Token expected) {
+        Token actual = peek();
+        if (actual != expected)
+            throw error("Expected " + expected + " but was " + actual);
+    }
+
+    public boolean hasNext() {
+        Token next = peek();
+        return next != Token.END_OBJECT && next != Token.END_ARRAY && next != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() {
+        expect(Token.BEGIN_OBJECT);
+        pos++;
+        push(true);
+    }
+
+    public void endObject() {
+        expect(Token.END_OBJECT);
+        pos++;
+        pop();
+        afterValue();
+    }
+
+    public void beginArray() {
+        expect(Token.BEGIN_ARRAY);
+        pos++;
+        push(false);
+    }
+
+    public void endArray() {
+        expect(Token.END_ARRAY);
+        pos++;
+        pop();
+        afterValue();
+    }
+
+    public String nextName() {
+        expect(Token.NAME);
+        String name = readString();
+        if (skipSeparators() != ':')
+            throw error("Expected ':'");
+        pos++;
+        nameNext = false;
+        return name;
+    }
+
+    /**
+     * @return the next string value, or null if the value is null
+     */
+    public String nextString() {
+        Token next = peek();
+        if (next == Token.NULL) {
+            nextNull();
+            return null;
+        }
+        if (next != Token.STRING)
+            throw error("Expected STRING but was " + next);
+        String res = readString();
+        afterValue();
+        return res;
+    }
+
+    public boolean nextBoolean() {
+        expect(Token.BOOLEAN);
+        boolean res;
+        if (json.startsWith("true", pos)) {
+            pos += 4;
+            res = true;
+        } else if (json.startsWith("false", pos)) {
+            pos += 5;
+            res = false;
+        } else
+            throw error("Invalid literal");
+        afterValue();
+        return res;
+    }
+
+    public void nextNull() {
+        expect(Token.NULL);
+        if (! json.startsWith("null", pos))
+            throw error("Invalid literal");
+        pos += 4;
+        afterValue();
+    }
+
+    /**
+     *  Read an integer value directly from the characters
+     */
+    public long nextLong() {
+        expect(Token.NUMBER);
+        boolean negative = json.charAt(pos) == '-';
+        if (negative)
+            pos++;
+        int start = pos;
+        long res = 0;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c < '0' || c > '9')
+                break;
+            int digit = c - '0';
+            if (res > (Long.MAX_VALUE - digit) / 10)
+                throw error("Integer overflow");
+            res = res * 10 + digit;
+            pos++;
+        }
+        if (pos == start)
+            throw error("Expected digits");
+        if (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E')
+                throw error("Expected an integer");
+        }
+        afterValue();
+        return negative ? -res : res;
+    }
+
+    /**
+     *  Skip the next value, including everything inside it if it is an object or array. If the next token is a name,
+     *  skip it and its value.
+     */
+    public void skipValue() {
+        Token next = peek();
+        switch (next) {
+            case NAME:
+                nextName();
+                skipValue();
+                return;
+            case BEGIN_OBJECT:
+            case BEGIN_ARRAY: {
+                int nested = 0;
+                do {
+                    char c = json.charAt(pos);
+                    if (c == '"') {
+                        skipString();
+                        continue;
+                    }
+                    if (c == '{' || c == '[')
+                        nested++;
+                    else if (c == '}' || c == ']')
+                        nested--;
+                    pos++;
+                    if (pos >= json.length() && nested > 0)
+                        throw error("Unterminated container");
+                } while (nested > 0);
+                break;
+            }
+            case STRING:
+                skipString();
+                break;
+            case NUMBER:
+                while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0)
+                    pos++;
+                break;
+            case BOOLEAN:
+            case NULL:
+                while (pos < json.length() && Character.isLetter(json.charAt(pos)))
+                    pos++;
+                break;
+            default:
+                throw error("Expected a value but was " + next);
+        }
+        afterValue();
+    }
+
+    private void skipString() {
+        pos++;
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '\\')
+                pos++;
+            else if (c == '"')
+                return;
+        }
+        throw error("Unterminated string");
+    }
+
+    private String readString() {
+        int start = ++pos;
+        // common case, no escapes
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                pos++;
+                return json.substring(start, pos - 1);
+            }
+            if (c == '\\')
+                break;
+            pos++;
+        }
+        StringBuilder res = new StringBuilder();
+        res.append(json, start, pos);
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"')
+                return res.toString();
+            if (c != '\\') {
+                res.append(c);
+                continue;
+            }
+            if (pos >= json.length())
+                break;
+            char escaped = json.charAt(pos++);
+            switch (escaped) {
+                case 'b': res.append('\b'); break;
+                case 'f': res.append('\f'); break;
+                case 'n': res.append('\n'); break;
+                case 'r': res.append('\r'); break;
+                case 't': res.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > json.length())
+                        throw error("Invalid unicode escape");
+                    int code = 0;
+                    for (int i=0; i < 4; i++) {
+                        int hex = Character.digit(json.charAt(pos++), 16);
+                        if (hex < 0)
+                            throw error("Invalid unicode escape");
+                        code = (code << 4) | hex;
+                    }
+                    res.append((char) code);
+                    break;
+                default:
+                    res.append(escaped);
+            }
+        }
+        throw error("Unterminated string");
+    }
+}
@@ -0,0 +1,153 @@
+package peergos.payment.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Named timers, counters and gauges, each with an optional label, which can be written in the Prometheus text format.
+ * Timers are exported as histograms with cumulative buckets, so Prometheus can compute quantiles over any window, e.g.
+ * histogram_quantile(0.99, rate(bank_call_seconds_bucket[5m])).
+ */
+public class MetricsRegistry {
+    // bucket upper bounds in seconds, from a fast database query to a slow bank call
+    private static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private enum Type {
+        HISTOGRAM("histogram"),
+        COUNTER("counter"),
+        GAUGE("gauge");
+
+        public final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Family {
+        public final Type type;
+        public final String help;
+        // label value => metric, where the empty string means no label
+        public final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+        public final String labelName;
+
+        public Family(Type type, String help, String labelName) {
+            this.type = type;
+            this.help = help;
+            this.labelName = labelName;
+        }
+    }
+
+    // a value which is read when the metrics are written
+    private static class SuppliedValue {
+        public final Supplier<Number> value;
+
+        public SuppliedValue(Supplier<Number> value) {
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private Family family(String name, Type type, String help, String labelName) {
+        Family family = families.computeIfAbsent(name, n -> new Family(type, help, labelName));
+        if (family.type != type || ! family.labelName.equals(labelName))
+            throw new IllegalStateException("Metric " + name + " is already registered differently!");
+        return family;
+    }
+
+    public Histogram timer(String name, String help, String labelName, String labelValue) {
+        return (Histogram) family(name, Type.HISTOGRAM, help, labelName).metrics
+                .computeIfAbsent(labelValue, v -> new Histogram());
+    }
+
+    public Histogram timer(String name, String help) {
+        return timer(name, help, "", "");
+    }
+
+    public AtomicLong counter(String name, String help, String labelName, String labelValue) {
+        return (AtomicLong) family(name, Type.COUNTER, help, labelName).metrics
+                .computeIfAbsent(labelValue, v -> new AtomicLong(0));
+    }
+
+    public AtomicLong counter(String name, String help) {
+        return counter(name, help, "", "");
+    }
+
+    /**
+     * @return a gauge to increment and decrement, like the number of requests in flight
+     */
+    public AtomicLong gauge(String name, String help, String labelName, String labelValue) {
+        return (AtomicLong) family(name, Type.GAUGE, help, labelName).metrics
+                .computeIfAbsent(labelValue, v -> new AtomicLong(0));
+    }
+
+    /**
+     * Register a gauge which is read when the metrics are written
+     */
+    public void gauge(String name, String help, Supplier<Number> value) {
+        family(name, Type.GAUGE, help, "").metrics.put("", new SuppliedValue(value));
+    }
+
+    /**
+     * Register a counter which is maintained elsewhere, and read when the metrics are written
+     */
+    public void counter(String name, String help, Supplier<Number> value) {
+        family(name, Type.COUNTER, help, "").metrics.put("", new SuppliedValue(value));
+    }
+
+    private static String labels(Family family, String labelValue, String extra) {
+        List<String> labels = new ArrayList<>();
+        if (! family.labelName.isEmpty())
+            labels.add(family.labelName + "=\"" + escape(labelValue) + "\"");
+        if (extra != null)
+            labels.add(extra);
+        return labels.isEmpty() ? "" : "{" + String.join(",", labels) + "}";
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static double value(Object metric) {
+        if (metric instanceof AtomicLong)
+            return ((AtomicLong) metric).get();
+        return ((SuppliedValue) metric).value.get().doubleValue();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && ! Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> e : families.entrySet()) {
+            String name = e.getKey();
+            Family family = e.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type.name).append('\n');
+            for (Map.Entry<String, Object> m : family.metrics.entrySet()) {
+                if (family.type == Type.HISTOGRAM) {
+                    Histogram h = (Histogram) m.getValue();
+                    long[] counts = h.cumulativeCounts(BUCKETS);
+                    for (int i=0; i < BUCKETS.length; i++)
+                        out.append(name).append("_bucket").append(labels(family, m.getKey(), "le=\"" + format(BUCKETS[i]) + "\""))
+                                .append(' ').append(counts[i]).append('\n');
+                    long total = counts[BUCKETS.length];
+                    out.append(name).append("_bucket").append(labels(family, m.getKey(), "le=\"+Inf\"")).append(' ')
+                            .append(total).append('\n');
+                    out.append(name).append("_sum").append(labels(family, m.getKey(), null)).append(' ')
+                            .append(format(h.getSumSeconds())).append('\n');
+                    out.append(name).append("_count").append(labels(family, m.getKey(), null)).append(' ')
+                            .append(total).append('\n');
+                } else {
+                    out.append(name).append(labels(family, m.getKey(), null)).append(' ')
+                            .append(format(value(m.getValue()))).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package peergos.payment.util;
+
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A fixed set of locks where each key always maps to the same lock, so operations on different keys rarely contend.
+ * The locks are not reentrant.
+ */
+public class StripedLock {
+
+    private final Semaphore[] stripes;
+
+    public StripedLock(int stripeCount) {
+        if (stripeCount < 1)
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        this.stripes = new Semaphore[stripeCount];
+        for (int i=0; i < stripeCount; i++)
+            stripes[i] = new Semaphore(1);
+    }
+
+    private Semaphore stripe(String key) {
+        int h = key.hashCode();
+        return stripes[Math.floorMod(h ^ (h >>> 16), stripes.length)];
+    }
+
+    public void lock(String key) {
+        stripe(key).acquireUninterruptibly();
+    }
+
+    /**
+     *  Release a lock taken with lock(key). This can be called from a different thread to the one that took it.
+     */
+    public void unlock(String key) {
+        stripe(key).release();
+    }
+
+    /**
+     *  Hold the lock for key until the asynchronous task completes
+     */
+    public <T> CompletableFuture<T> withLockAsync(String key, Supplier<CompletableFuture<T>> task) {
+        lock(key);
+        CompletableFuture<T> res;
+        try {
+            res = task.get();
+        } catch (Throwable t) {
+            unlock(key);
+            throw t;
+        }
+        return res.whenComplete((r, e) -> unlock(key));
+    }
+
+    public <T> T withLock(String key, Supplier<T> task) {
+        Semaphore lock = stripe(key);
+        lock.acquireUninterruptibly();
+        try {
+            return task.get();
+        } finally {
+            lock.release();
+        }
+    }
+
+    public void withLock(String key, Runnable task) {
+        withLock(key, () -> {
+            task.run();
+            return null;
+        });
+    }
+}
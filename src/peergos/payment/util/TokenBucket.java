@@ -0,0 +1,77 @@
+package peergos.payment.util;
+
+import java.util.concurrent.*;
+
+/**
+ * A rate limiter which allows bursts of up to capacity events, refilled continuously at a fixed rate
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double tokensPerSecond, double capacity) {
+        if (tokensPerSecond <= 0 || capacity < 1)
+            throw new IllegalArgumentException("Invalid token bucket: " + tokensPerSecond + "/s, capacity " + capacity);
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1)
+            return false;
+        tokens--;
+        return true;
+    }
+
+    /**
+     *  Take a token now, going into debt if there isn't one, without blocking
+     *
+     * @return how long the caller must wait in nanoseconds before using the token
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens--;
+        if (tokens >= 0)
+            return 0;
+        return (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /**
+     *  Block until a token is available and take it
+     *
+     * @return whether we had to wait
+     */
+    public boolean acquire() {
+        boolean waited = false;
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill();
+                if (tokens >= 1) {
+                    tokens--;
+                    return waited;
+                }
+                waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+            }
+            waited = true;
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for rate limit", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package peergos.payment.util;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * A bounded cache of values loaded asynchronously, which expire after a fixed time. The least recently used entry is
+ * evicted when full. Concurrent lookups of a missing key share a single load. Failed loads and null values are not
+ * cached.
+ */
+public class TtlCache<K, V> {
+
+    private static class CachedValue<V> {
+        public final V value;
+        public final long expiryNanos;
+
+        public CachedValue(V value, long expiryNanos) {
+            this.value = value;
+            this.expiryNanos = expiryNanos;
+        }
+    }
+
+    private final Function<K, CompletableFuture<V>> loader;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, CachedValue<V>> entries;
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    public TtlCache(int maxSize, Duration ttl, Function<K, CompletableFuture<V>> loader) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Cache size must be positive!");
+        this.loader = loader;
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public CompletableFuture<V> get(K key) {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            CachedValue<V> cached = entries.get(key);
+            if (cached != null) {
+                if (now - cached.expiryNanos < 0) {
+                    hits.incrementAndGet();
+                    return CompletableFuture.completedFuture(cached.value);
+                }
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, load);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+        CompletableFuture<V> loaded;
+        try {
+            loaded = loader.apply(key);
+        } catch (RuntimeException e) {
+            loaded = CompletableFuture.failedFuture(e);
+        }
+        loaded.whenComplete((value, err) -> {
+            // cache before finishing the load, so there is no window where neither has the value
+            if (err == null && value != null) {
+                synchronized (entries) {
+                    entries.put(key, new CachedValue<>(value, System.nanoTime() + ttlNanos));
+                }
+            }
+            inFlight.remove(key, load);
+            if (err != null)
+                load.completeExceptionally(err);
+            else
+                load.complete(value);
+        });
+        return load;
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of misses which waited on a load that was already in flight
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public double hitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}